@@ -0,0 +1,49 @@
+package com.github.nimobeeren.thesis.janusgraph;
+
+import org.apache.tinkerpop.gremlin.structure.Direction;
+
+// Declarative version of a schema rule, which can be checked against a ColumnarStore
+public class ColumnarRule {
+  enum Kind {
+    // Vertices with one of the labels must have all of the keys
+    VERTEX_PROPERTIES,
+    // Vertices with one of the labels must have at least one edge with the edge label
+    VERTEX_EDGE,
+    // Edges with one of the labels must have all of the keys
+    EDGE_PROPERTIES
+  }
+
+  String name;
+  Kind kind;
+  // Null means the rule applies to all labels
+  String[] labels;
+  String[] keys;
+  Direction direction;
+  String edgeLabel;
+
+  ColumnarRule(String name, Kind kind, String[] labels) {
+    this.name = name;
+    this.kind = kind;
+    this.labels = labels;
+  }
+
+  static ColumnarRule vertexProperties(String name, String[] labels, String... keys) {
+    ColumnarRule rule = new ColumnarRule(name, Kind.VERTEX_PROPERTIES, labels);
+    rule.keys = keys;
+    return rule;
+  }
+
+  static ColumnarRule vertexEdge(String name, String[] labels, Direction direction,
+      String edgeLabel) {
+    ColumnarRule rule = new ColumnarRule(name, Kind.VERTEX_EDGE, labels);
+    rule.direction = direction;
+    rule.edgeLabel = edgeLabel;
+    return rule;
+  }
+
+  static ColumnarRule edgeProperties(String name, String[] labels, String... keys) {
+    ColumnarRule rule = new ColumnarRule(name, Kind.EDGE_PROPERTIES, labels);
+    rule.keys = keys;
+    return rule;
+  }
+}
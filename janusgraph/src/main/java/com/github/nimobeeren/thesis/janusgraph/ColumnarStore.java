@@ -0,0 +1,350 @@
+package com.github.nimobeeren.thesis.janusgraph;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import org.apache.tinkerpop.gremlin.structure.Direction;
+import org.apache.tinkerpop.gremlin.structure.Edge;
+import org.apache.tinkerpop.gremlin.structure.Vertex;
+import org.janusgraph.core.JanusGraph;
+import org.janusgraph.core.JanusGraphEdge;
+import org.janusgraph.core.JanusGraphVertex;
+import org.janusgraph.core.PropertyKey;
+
+/*
+ * Column-oriented snapshot of a graph, used to re-run schema checks without going through Gremlin.
+ *
+ * Every vertex label and edge label gets its own directory containing one file per column. Columns
+ * are plain big-endian arrays of longs, so they can be memory-mapped directly:
+ *
+ * vertex/<Label>/id.long: vertex IDs
+ * vertex/<Label>/property.<key>.bitmap: presence bitmap of a property (bit i is set if vertex i has
+ * at least one value for the key)
+ * vertex/<Label>/<out|in>.<EDGE_LABEL>.offsets: n + 1 running totals of the number of edges, so
+ * vertex i has offsets[i + 1] - offsets[i] edges with the label in that direction
+ * edge/<EDGE_LABEL>/out.long, edge/<EDGE_LABEL>/in.long: IDs of source and target vertices
+ * edge/<EDGE_LABEL>/property.<key>.bitmap: presence bitmap of an edge property
+ *
+ * A single mapping is limited to 2 GB, so columns are mapped in chunks (see LongColumn).
+ */
+public class ColumnarStore {
+  File dir;
+
+  ColumnarStore(File dir) {
+    this.dir = dir;
+  }
+
+  void export(JanusGraph graph) throws IOException {
+    // Remove the columns of a previous export, which may have labels that no longer exist
+    deleteRecursively(new File(dir, "vertex"));
+    deleteRecursively(new File(dir, "edge"));
+
+    // Vertices, their adjacency and the edges, one pass over all vertices. Every edge is written
+    // when it is seen as an outgoing edge, so there is no separate pass over all edges.
+    System.out.print("Vertices and edges ... ");
+    Map<String, VertexColumnsWriter> vertexWriters = new HashMap<String, VertexColumnsWriter>();
+    Map<String, EdgeColumnsWriter> edgeWriters = new HashMap<String, EdgeColumnsWriter>();
+    Iterator<Vertex> vertices = graph.traversal().V();
+    while (vertices.hasNext()) {
+      JanusGraphVertex vertex = (JanusGraphVertex) vertices.next();
+      VertexColumnsWriter writer = vertexWriters.get(vertex.label());
+      if (writer == null) {
+        writer = new VertexColumnsWriter(vertexDir(vertex.label()), vertex.vertexLabel()
+            .mappedProperties(), new File(dir, "edge"), edgeWriters);
+        vertexWriters.put(vertex.label(), writer);
+      }
+      writer.write(vertex);
+    }
+    for (VertexColumnsWriter writer : vertexWriters.values()) {
+      writer.close();
+    }
+    for (EdgeColumnsWriter writer : edgeWriters.values()) {
+      writer.close();
+    }
+    System.out.println("✅");
+
+    graph.tx().rollback();
+  }
+
+  File vertexDir(String label) {
+    return new File(new File(dir, "vertex"), label);
+  }
+
+  File edgeDir(String label) {
+    return new File(new File(dir, "edge"), label);
+  }
+
+  Set<String> vertexLabels() {
+    return listDirs(new File(dir, "vertex"));
+  }
+
+  Set<String> edgeLabels() {
+    return listDirs(new File(dir, "edge"));
+  }
+
+  long vertexCount(String label) {
+    return new File(vertexDir(label), "id.long").length() / Long.BYTES;
+  }
+
+  long edgeCount(String label) {
+    return new File(edgeDir(label), "out.long").length() / Long.BYTES;
+  }
+
+  // Column of longs that may be larger than a single mapping, so it is mapped in chunks
+  static class LongColumn {
+    // 2^27 longs (1 GB) per mapping
+    static final int CHUNK_BITS = 27;
+    static final long CHUNK_MASK = (1L << CHUNK_BITS) - 1;
+
+    LongBuffer[] chunks;
+    long size;
+
+    LongColumn(FileChannel channel) throws IOException {
+      this.size = channel.size() / Long.BYTES;
+      int numChunks = (int) ((size + CHUNK_MASK) >>> CHUNK_BITS);
+      this.chunks = new LongBuffer[numChunks];
+      for (int i = 0; i < numChunks; i++) {
+        long start = (long) i << CHUNK_BITS;
+        long length = Math.min(size - start, 1L << CHUNK_BITS);
+        chunks[i] = channel.map(MapMode.READ_ONLY, start * Long.BYTES, length * Long.BYTES)
+            .asLongBuffer();
+      }
+    }
+
+    long get(long index) {
+      return chunks[(int) (index >>> CHUNK_BITS)].get((int) (index & CHUNK_MASK));
+    }
+  }
+
+  // Returns null if no vertex with this label has the property
+  LongColumn vertexPresence(String label, String key) throws IOException {
+    return mapLongs(new File(vertexDir(label), String.format("property.%s.bitmap", key)));
+  }
+
+  // Returns null if no vertex with this label has an edge with this label
+  LongColumn vertexOffsets(String label, Direction direction, String edgeLabel)
+      throws IOException {
+    return mapLongs(new File(vertexDir(label),
+        String.format("%s.%s.offsets", direction.name().toLowerCase(), edgeLabel)));
+  }
+
+  // Returns null if no edge with this label has the property
+  LongColumn edgePresence(String label, String key) throws IOException {
+    return mapLongs(new File(edgeDir(label), String.format("property.%s.bitmap", key)));
+  }
+
+  static LongColumn mapLongs(File file) throws IOException {
+    if (!file.isFile()) {
+      return null;
+    }
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      // The mappings stay valid after the channel is closed
+      return new LongColumn(channel);
+    }
+  }
+
+  static void deleteRecursively(File file) throws IOException {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        deleteRecursively(child);
+      }
+    }
+    if (file.exists() && !file.delete()) {
+      throw new IOException(String.format("Could not delete %s", file));
+    }
+  }
+
+  static Set<String> listDirs(File parent) {
+    Set<String> names = new TreeSet<String>();
+    File[] files = parent.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        if (file.isDirectory()) {
+          names.add(file.getName());
+        }
+      }
+    }
+    return names;
+  }
+
+  static DataOutputStream openColumn(File dir, String name) throws IOException {
+    dir.mkdirs();
+    return new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(new File(dir, name)), 1 << 16));
+  }
+
+  static class BitmapWriter {
+    DataOutputStream out;
+    long word = 0;
+    long numBits = 0;
+
+    BitmapWriter(DataOutputStream out) {
+      this.out = out;
+    }
+
+    void add(boolean bit) throws IOException {
+      if (bit) {
+        word |= 1L << (numBits % 64);
+      }
+      if (++numBits % 64 == 0) {
+        out.writeLong(word);
+        word = 0;
+      }
+    }
+
+    void close() throws IOException {
+      if (numBits % 64 != 0) {
+        out.writeLong(word);
+      }
+      out.close();
+    }
+  }
+
+  static class AdjacencyWriter {
+    DataOutputStream offsets;
+    long offset = 0;
+
+    // Columns are created when the first edge with a label is seen, so all previous vertices get
+    // no edges
+    AdjacencyWriter(File dir, String name, long numPreviousVertices) throws IOException {
+      this.offsets = openColumn(dir, name + ".offsets");
+      for (long i = 0; i <= numPreviousVertices; i++) {
+        offsets.writeLong(0);
+      }
+    }
+
+    void add() {
+      offset++;
+    }
+
+    // Called once for every vertex after its edges have been counted
+    void endVertex() throws IOException {
+      offsets.writeLong(offset);
+    }
+
+    void close() throws IOException {
+      offsets.close();
+    }
+  }
+
+  static class VertexColumnsWriter {
+    File dir;
+    DataOutputStream ids;
+    Map<String, BitmapWriter> presenceByKey = new HashMap<String, BitmapWriter>();
+    Map<String, AdjacencyWriter> adjacencyByName = new HashMap<String, AdjacencyWriter>();
+    long numVertices = 0;
+    // Outgoing edges are written to the columns of their edge label, which are shared by the
+    // writers of all vertex labels
+    File edgeRootDir;
+    Map<String, EdgeColumnsWriter> edgeWriters;
+
+    VertexColumnsWriter(File dir, Iterable<PropertyKey> propKeys, File edgeRootDir,
+        Map<String, EdgeColumnsWriter> edgeWriters) throws IOException {
+      this.dir = dir;
+      this.edgeRootDir = edgeRootDir;
+      this.edgeWriters = edgeWriters;
+      this.ids = openColumn(dir, "id.long");
+      for (PropertyKey propKey : propKeys) {
+        presenceByKey.put(propKey.name(), new BitmapWriter(
+            openColumn(dir, String.format("property.%s.bitmap", propKey.name()))));
+      }
+    }
+
+    void write(JanusGraphVertex vertex) throws IOException {
+      ids.writeLong(vertex.longId());
+
+      Set<String> keys = vertex.keys();
+      for (Map.Entry<String, BitmapWriter> entry : presenceByKey.entrySet()) {
+        entry.getValue().add(keys.contains(entry.getKey()));
+      }
+
+      addEdges(vertex, Direction.OUT);
+      addEdges(vertex, Direction.IN);
+      for (AdjacencyWriter adjacency : adjacencyByName.values()) {
+        adjacency.endVertex();
+      }
+
+      numVertices++;
+    }
+
+    void addEdges(JanusGraphVertex vertex, Direction direction) throws IOException {
+      Iterator<Edge> edges = vertex.edges(direction);
+      while (edges.hasNext()) {
+        Edge edge = edges.next();
+        String name = String.format("%s.%s", direction.name().toLowerCase(), edge.label());
+        AdjacencyWriter adjacency = adjacencyByName.get(name);
+        if (adjacency == null) {
+          adjacency = new AdjacencyWriter(dir, name, numVertices);
+          adjacencyByName.put(name, adjacency);
+        }
+        adjacency.add();
+
+        if (direction == Direction.OUT) {
+          JanusGraphEdge janusEdge = (JanusGraphEdge) edge;
+          EdgeColumnsWriter edgeWriter = edgeWriters.get(edge.label());
+          if (edgeWriter == null) {
+            edgeWriter = new EdgeColumnsWriter(new File(edgeRootDir, edge.label()),
+                janusEdge.edgeLabel().mappedProperties());
+            edgeWriters.put(edge.label(), edgeWriter);
+          }
+          edgeWriter.write(janusEdge);
+        }
+      }
+    }
+
+    void close() throws IOException {
+      ids.close();
+      for (BitmapWriter presence : presenceByKey.values()) {
+        presence.close();
+      }
+      for (AdjacencyWriter adjacency : adjacencyByName.values()) {
+        adjacency.close();
+      }
+    }
+  }
+
+  static class EdgeColumnsWriter {
+    DataOutputStream outIds;
+    DataOutputStream inIds;
+    Map<String, BitmapWriter> presenceByKey = new HashMap<String, BitmapWriter>();
+
+    EdgeColumnsWriter(File dir, Iterable<PropertyKey> propKeys) throws IOException {
+      this.outIds = openColumn(dir, "out.long");
+      this.inIds = openColumn(dir, "in.long");
+      for (PropertyKey propKey : propKeys) {
+        presenceByKey.put(propKey.name(), new BitmapWriter(
+            openColumn(dir, String.format("property.%s.bitmap", propKey.name()))));
+      }
+    }
+
+    void write(JanusGraphEdge edge) throws IOException {
+      outIds.writeLong((Long) edge.outVertex().id());
+      inIds.writeLong((Long) edge.inVertex().id());
+
+      Set<String> keys = edge.keys();
+      for (Map.Entry<String, BitmapWriter> entry : presenceByKey.entrySet()) {
+        entry.getValue().add(keys.contains(entry.getKey()));
+      }
+    }
+
+    void close() throws IOException {
+      outIds.close();
+      inIds.close();
+      for (BitmapWriter presence : presenceByKey.values()) {
+        presence.close();
+      }
+    }
+  }
+}
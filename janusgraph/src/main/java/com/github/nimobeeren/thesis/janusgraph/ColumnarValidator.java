@@ -0,0 +1,142 @@
+package com.github.nimobeeren.thesis.janusgraph;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Checks schema rules against a ColumnarStore using loops over primitive arrays instead of graph
+// traversals
+public class ColumnarValidator {
+  ColumnarStore store;
+
+  // Number of violating elements per rule, filled by validate()
+  Map<String, Long> violationsByRule = new LinkedHashMap<String, Long>();
+
+  ColumnarValidator(ColumnarStore store) {
+    this.store = store;
+  }
+
+  // Returns the number of elements that violate at least one rule
+  long validate(List<ColumnarRule> rules) throws IOException {
+    // Keep one violation bitmap per label, so elements violating multiple rules are counted once
+    Map<String, long[]> vertexViolations = new HashMap<String, long[]>();
+    Map<String, long[]> edgeViolations = new HashMap<String, long[]>();
+
+    for (ColumnarRule rule : rules) {
+      long numViolations = 0;
+      boolean isEdgeRule = rule.kind == ColumnarRule.Kind.EDGE_PROPERTIES;
+      Iterable<String> labels = rule.labels != null ? Arrays.asList(rule.labels)
+          : isEdgeRule ? store.edgeLabels() : store.vertexLabels();
+
+      for (String label : labels) {
+        long numElements = isEdgeRule ? store.edgeCount(label) : store.vertexCount(label);
+        if (numElements == 0) {
+          continue;
+        }
+
+        long[] violations;
+        switch (rule.kind) {
+          case VERTEX_PROPERTIES:
+            violations = findMissingProperties(numElements, label, rule.keys, false);
+            break;
+          case VERTEX_EDGE:
+            violations = findMissingEdges(numElements, label, rule);
+            break;
+          case EDGE_PROPERTIES:
+            violations = findMissingProperties(numElements, label, rule.keys, true);
+            break;
+          default:
+            throw new IllegalArgumentException(String.format("Unknown rule kind %s", rule.kind));
+        }
+
+        Map<String, long[]> violationsByLabel = isEdgeRule ? edgeViolations : vertexViolations;
+        long[] labelViolations = violationsByLabel.get(label);
+        if (labelViolations == null) {
+          labelViolations = new long[violations.length];
+          violationsByLabel.put(label, labelViolations);
+        }
+        for (int i = 0; i < violations.length; i++) {
+          labelViolations[i] |= violations[i];
+          numViolations += Long.bitCount(violations[i]);
+        }
+      }
+
+      violationsByRule.put(rule.name, numViolations);
+    }
+
+    long numViolatingElements = 0;
+    for (long[] violations : vertexViolations.values()) {
+      numViolatingElements += countBits(violations);
+    }
+    for (long[] violations : edgeViolations.values()) {
+      numViolatingElements += countBits(violations);
+    }
+    return numViolatingElements;
+  }
+
+  long[] findMissingProperties(long numElements, String label, String[] keys, boolean isEdge)
+      throws IOException {
+    int numWords = numWords(numElements);
+    long[] violations = new long[numWords];
+
+    for (String key : keys) {
+      ColumnarStore.LongColumn column =
+          isEdge ? store.edgePresence(label, key) : store.vertexPresence(label, key);
+      if (column == null) {
+        // No element has this property, so all of them violate the rule
+        Arrays.fill(violations, -1L);
+        break;
+      }
+      // Read straight from the mapping
+      for (int i = 0; i < numWords; i++) {
+        violations[i] |= ~column.get(i);
+      }
+    }
+
+    violations[numWords - 1] &= lastWordMask(numElements);
+    return violations;
+  }
+
+  long[] findMissingEdges(long numElements, String label, ColumnarRule rule) throws IOException {
+    long[] violations = new long[numWords(numElements)];
+
+    ColumnarStore.LongColumn column = store.vertexOffsets(label, rule.direction, rule.edgeLabel);
+    if (column == null) {
+      // No vertex has this edge, so all of them violate the rule
+      Arrays.fill(violations, -1L);
+      violations[violations.length - 1] &= lastWordMask(numElements);
+      return violations;
+    }
+
+    long start = column.get(0);
+    for (long i = 0; i < numElements; i++) {
+      long end = column.get(i + 1);
+      // A vertex without edges has the same start and end offset
+      if (end == start) {
+        violations[(int) (i >>> 6)] |= 1L << (i & 63);
+      }
+      start = end;
+    }
+    return violations;
+  }
+
+  static int numWords(long numBits) {
+    // Fails instead of truncating if a label has more than 2^37 elements
+    return Math.toIntExact((numBits + 63) / 64);
+  }
+
+  static long lastWordMask(long numBits) {
+    return numBits % 64 == 0 ? -1L : (1L << (numBits % 64)) - 1;
+  }
+
+  static long countBits(long[] words) {
+    long count = 0;
+    for (long word : words) {
+      count += Long.bitCount(word);
+    }
+    return count;
+  }
+}
@@ -1,33 +1,155 @@
 package com.github.nimobeeren.thesis.janusgraph;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import org.apache.tinkerpop.gremlin.process.traversal.Traversal;
 import org.apache.tinkerpop.gremlin.process.traversal.dsl.graph.GraphTraversal;
+import org.apache.tinkerpop.gremlin.process.traversal.dsl.graph.GraphTraversalSource;
+import org.apache.tinkerpop.gremlin.process.traversal.dsl.graph.__;
+import org.apache.tinkerpop.gremlin.structure.Direction;
 import org.apache.tinkerpop.gremlin.structure.Edge;
 import org.apache.tinkerpop.gremlin.structure.Element;
+import org.apache.tinkerpop.gremlin.structure.T;
 import org.apache.tinkerpop.gremlin.structure.Vertex;
 import org.janusgraph.core.JanusGraph;
+import org.janusgraph.core.JanusGraphTransaction;
+import org.janusgraph.diskstorage.configuration.Configuration;
+import org.janusgraph.graphdb.configuration.GraphDatabaseConfiguration;
+import org.janusgraph.graphdb.database.StandardJanusGraph;
 
 public abstract class DataModel {
+  // Appended to the storage directory to get the file with the dictionaries
+  static final String DICTIONARY_SUFFIX = "-dictionary.csv";
+
   JanusGraph graph;
+  LoadProfiler profiler = new LoadProfiler();
+  // When set, validation runs on a remote graph instead of the embedded one (graph is then null)
+  GraphTraversalSource remoteTraversal;
+  // Filled by countViolations(), number of violating elements by rule and then by label
+  Map<String, Map<String, Long>> violationsByRule = new TreeMap<String, Map<String, Long>>();
+  // Vertices that a thread checks at once in validateBoolean()
+  int VALIDATION_CHUNK_SIZE = 1000;
+  // Parses the values of the data files, with the dictionaries of the model
+  ValueEncoder encoder = new ValueEncoder();
+  // Where the dictionaries are kept between loads, or null if the graph has no storage directory
+  File dictionaryFile;
 
   DataModel(JanusGraph graph) {
     this.graph = graph;
+    this.dictionaryFile = nextToStorage(graph, DICTIONARY_SUFFIX);
+  }
+
+  // A file or directory next to the storage directory of an embedded graph, so it is on the same
+  // disk and belongs to that graph. Returns null for remote and in-memory graphs.
+  static File nextToStorage(JanusGraph graph, String suffix) {
+    if (graph == null) {
+      return null;
+    }
+    Configuration config = ((StandardJanusGraph) graph).getConfiguration().getConfiguration();
+    if (!config.has(GraphDatabaseConfiguration.STORAGE_DIRECTORY)) {
+      return null;
+    }
+    File storageDirectory = new File(config.get(GraphDatabaseConfiguration.STORAGE_DIRECTORY));
+    return new File(storageDirectory.getParentFile(), storageDirectory.getName() + suffix);
   }
 
   public void load(File dataDir) throws Exception {
-    loadSchema();
-    loadData(dataDir);
+    profiler.start();
+    try {
+      loadSchema();
+      loadDictionaries();
+      try {
+        loadData(dataDir);
+      } finally {
+        // Part of a failed load may be committed already, and needs the codes to be read
+        saveDictionaries();
+      }
+    } finally {
+      profiler.stop();
+    }
+  }
+
+  // Must be called before any value is encoded, so values that were loaded before keep their code
+  void loadDictionaries() throws IOException {
+    if (dictionaryFile != null) {
+      encoder.load(dictionaryFile);
+    }
+  }
+
+  // Must be called after the encoded values are committed
+  void saveDictionaries() throws IOException {
+    if (dictionaryFile != null) {
+      encoder.save(dictionaryFile);
+    }
   }
 
   abstract void loadSchema();
 
   abstract void loadData(File dataDir) throws Exception;
 
-  abstract GraphTraversal<Vertex, Vertex> findViolatingVertices();
+  // Applies the changes in updatesDir, which contains an inserts and/or a deletes directory with
+  // the same file layout as the full data set (any subset of the files may be present). Inserts
+  // are applied before deletes. Returns the IDs of all vertices whose conformance may have changed.
+  abstract Set<Object> applyUpdates(File updatesDir) throws Exception;
+
+  // Rules are anonymous traversals that let a vertex/edge through only if it violates the schema,
+  // keyed by a human-readable description of the rule. A fresh set is built on every call, because
+  // a traversal can only be used once.
+  abstract Map<String, Traversal<?, ?>> vertexRules();
+
+  abstract Map<String, Traversal<?, ?>> edgeRules();
+
+  // The edges that edgeRules() apply to among the outgoing edges of the given vertices. Walking
+  // from all vertices still goes through every vertex, because JanusGraph has no index on labels,
+  // but only the edges with the relevant labels are read instead of every edge like g.E().
+  abstract GraphTraversal<Vertex, Edge> ruleEdges(GraphTraversal<Vertex, Vertex> vertices);
+
+  GraphTraversalSource traversal() {
+    return remoteTraversal != null ? remoteTraversal : graph.traversal();
+  }
+
+  // Remote traversals are not bound to a transaction of this thread
+  void rollback() {
+    if (graph != null) {
+      graph.tx().rollback();
+    }
+  }
+
+  // Used by updates, so that applying the same inserts again doesn't add a second edge between
+  // the same vertices, which would break a SIMPLE or MANY2ONE edge label
+  Edge findEdge(Vertex source, String edgeLabelName, Vertex target) {
+    Iterator<Edge> edges = source.edges(Direction.OUT, edgeLabelName);
+    while (edges.hasNext()) {
+      Edge edge = edges.next();
+      if (edge.inVertex().equals(target)) {
+        return edge;
+      }
+    }
+    return null;
+  }
+
+  GraphTraversal<Vertex, Vertex> findViolatingVertices() {
+    return traversal().V().or(vertexRules().values().toArray(new Traversal<?, ?>[0]));
+  }
 
-  abstract GraphTraversal<Edge, Edge> findViolatingEdges();
+  GraphTraversal<Vertex, Edge> findViolatingEdges() {
+    return ruleEdges(traversal().V())
+        .or(edgeRules().values().toArray(new Traversal<?, ?>[0]));
+  }
 
   Set<Element> validate() {
     Set<Element> violatingElements = new HashSet<Element>();
@@ -36,7 +158,126 @@ public abstract class DataModel {
     return violatingElements;
   }
 
-  boolean validateBoolean() {
-    return !(findViolatingVertices().hasNext() || findViolatingEdges().hasNext());
+  // Only checks the given vertices and their outgoing edges
+  Set<Element> validate(Set<Object> vertexIds) {
+    Set<Element> violatingElements = new HashSet<Element>();
+    if (vertexIds.isEmpty()) {
+      // g.V() without IDs would check all vertices
+      return violatingElements;
+    }
+    Object[] ids = vertexIds.toArray();
+    violatingElements.addAll(traversal().V(ids)
+        .or(vertexRules().values().toArray(new Traversal<?, ?>[0])).toSet());
+    violatingElements.addAll(traversal().V(ids).outE()
+        .or(edgeRules().values().toArray(new Traversal<?, ?>[0])).toSet());
+    return violatingElements;
+  }
+
+  // Counts the violating elements by rule and label inside the traversal, so only a small
+  // histogram is returned instead of the elements themselves. Returns the number of violating
+  // elements and fills violationsByRule.
+  long countViolations() {
+    violationsByRule.clear();
+    long numElements = countViolations(traversal().V(), this::vertexRules);
+    numElements += countViolations(ruleEdges(traversal().V()), this::edgeRules);
+    rollback();
+    return numElements;
+  }
+
+  long countViolations(GraphTraversal<?, ?> elements,
+      Supplier<Map<String, Traversal<?, ?>>> rules) {
+    // Every branch emits the name of its rule if the element violates it
+    List<Traversal<?, String>> branches = new ArrayList<Traversal<?, String>>();
+    for (Map.Entry<String, Traversal<?, ?>> entry : rules.get().entrySet()) {
+      branches.add(__.filter(entry.getValue()).constant(entry.getKey()));
+    }
+
+    // Keys are the label and the list of rules that an element violates
+    @SuppressWarnings("unchecked")
+    Map<Map<String, Object>, Long> histogram =
+        elements.or(rules.get().values().toArray(new Traversal<?, ?>[0]))
+            .project("label", "rules").by(T.label)
+            .by(__.union(branches.toArray(new Traversal[0])).fold())
+            .<Map<String, Object>>groupCount().next();
+
+    long numElements = 0;
+    for (Map.Entry<Map<String, Object>, Long> entry : histogram.entrySet()) {
+      String label = (String) entry.getKey().get("label");
+      numElements += entry.getValue();
+      for (Object rule : (List<?>) entry.getKey().get("rules")) {
+        Map<String, Long> countByLabel = violationsByRule.get(rule);
+        if (countByLabel == null) {
+          countByLabel = new TreeMap<String, Long>();
+          violationsByRule.put((String) rule, countByLabel);
+        }
+        countByLabel.merge(label, entry.getValue(), Long::sum);
+      }
+    }
+    return numElements;
+  }
+
+  // Violating vertices among the given vertices, followed by violating edges among their rule
+  // edges. This goes over the vertices once for all rules.
+  @SuppressWarnings("unchecked")
+  GraphTraversal<Vertex, ?> findViolations(GraphTraversal<Vertex, Vertex> vertices) {
+    return vertices.union(new Traversal[] {
+        __.<Vertex>start().or(vertexRules().values().toArray(new Traversal<?, ?>[0])),
+        ruleEdges(__.<Vertex>start()).or(edgeRules().values().toArray(new Traversal<?, ?>[0]))});
+  }
+
+  boolean validateBoolean() throws Exception {
+    if (remoteTraversal != null) {
+      // A single request, which stops scanning on the server at the first violation, so nothing
+      // keeps running on the server once the answer is known
+      return !findViolations(remoteTraversal.V()).hasNext();
+    }
+
+    // The vertices are scanned once, on this thread. Chunks of them are checked against all rules
+    // by the threads of the pool, so the rules run concurrently without each of them scanning the
+    // graph. The transaction is shared by all threads, which JanusGraph supports for threaded
+    // transactions.
+    // Once a violation is found, the scan stops and the remaining chunks are skipped. Threads are
+    // never interrupted, because BerkeleyJE invalidates its environment when a thread is
+    // interrupted while reading, which would break any later validation in the same process.
+    JanusGraphTransaction tx = graph.tx().createThreadedTx();
+    int numThreads = Runtime.getRuntime().availableProcessors();
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    // Limits the chunks that wait for a thread, so the scan doesn't run far ahead of the checks
+    Semaphore pendingChunks = new Semaphore(2 * numThreads);
+    AtomicBoolean foundViolation = new AtomicBoolean(false);
+    AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    try {
+      Iterator<Vertex> vertices = tx.traversal().V();
+      while (vertices.hasNext() && !foundViolation.get()) {
+        List<Vertex> chunk = new ArrayList<Vertex>(VALIDATION_CHUNK_SIZE);
+        while (vertices.hasNext() && chunk.size() < VALIDATION_CHUNK_SIZE) {
+          chunk.add(vertices.next());
+        }
+        pendingChunks.acquire();
+        executor.execute(() -> {
+          try {
+            if (!foundViolation.get()
+                && findViolations(tx.traversal().inject(chunk.toArray(new Vertex[0]))).hasNext()) {
+              foundViolation.set(true);
+            }
+          } catch (Throwable e) {
+            error.compareAndSet(null, e);
+            // Stops the scan
+            foundViolation.set(true);
+          } finally {
+            pendingChunks.release();
+          }
+        });
+      }
+    } finally {
+      // Let the remaining checks finish by themselves
+      executor.shutdown();
+      executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      tx.rollback();
+    }
+    if (error.get() != null) {
+      throw new Exception("Validation failed", error.get());
+    }
+    return !foundViolation.get();
   }
 }
@@ -0,0 +1,257 @@
+package com.github.nimobeeren.thesis.janusgraph;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.compressors.zstandard.ZstdCompressorInputStream;
+
+// Location of the data files of a data set. This is either a directory, in which every file may
+// also be compressed as <path>.gz or <path>.zst, or a tar archive (optionally compressed as .tar.gz
+// or .tar.zst) which is read in a single pass without extracting it to disk. Decompression happens
+// on a separate thread, so it overlaps with parsing and loading.
+public class DataSource {
+
+  interface FileHandler {
+    void handle(String path, Reader reader) throws Exception;
+  }
+
+  static final int PIPE_BUFFER_SIZE = 1 << 20;
+
+  File location;
+  // Counts the (decompressed) bytes of the file that is currently being handled
+  CountingInputStream current;
+
+  DataSource(File location) {
+    this.location = location;
+  }
+
+  boolean isArchive() {
+    String name = location.getName();
+    return location.isFile()
+        && (name.endsWith(".tar") || name.endsWith(".tar.gz") || name.endsWith(".tar.zst"));
+  }
+
+  boolean isCompressedArchive() {
+    return isArchive() && !location.getName().endsWith(".tar");
+  }
+
+  // Throws if any of the files is missing. The entries of an uncompressed archive are listed by
+  // skipping over their contents. A compressed archive can only be checked by decompressing all of
+  // it, so for those, missing files are reported at the end of forEachFile() instead.
+  void checkExists(Collection<String> paths) throws IOException {
+    if (isCompressedArchive()) {
+      return;
+    }
+    Set<String> remainingPaths = new LinkedHashSet<String>(paths);
+    if (isArchive()) {
+      try (TarArchiveInputStream tar = new TarArchiveInputStream(decompress(location))) {
+        TarArchiveEntry entry;
+        while (!remainingPaths.isEmpty() && (entry = tar.getNextTarEntry()) != null) {
+          remainingPaths.remove(matchEntry(entry, remainingPaths));
+        }
+      }
+    } else {
+      for (String path : paths) {
+        if (findFile(path) != null) {
+          remainingPaths.remove(path);
+        }
+      }
+    }
+    if (!remainingPaths.isEmpty()) {
+      throw new FileNotFoundException(
+          String.format("Missing data file: %s", remainingPaths.iterator().next()));
+    }
+  }
+
+  // Calls the handler once for every path. The files are visited in the order that is cheapest for
+  // the source: the given order for a directory, and the order of the entries for an archive,
+  // which is read once per call. Callers that need some files before others must handle them in
+  // any order (see SNBModel.loadData()).
+  void forEachFile(Collection<String> paths, FileHandler handler) throws Exception {
+    Set<String> remainingPaths = new LinkedHashSet<String>(paths);
+
+    if (isArchive()) {
+      try (TarArchiveInputStream tar = new TarArchiveInputStream(decompress(location))) {
+        TarArchiveEntry entry;
+        while (!remainingPaths.isEmpty() && (entry = tar.getNextTarEntry()) != null) {
+          String path = matchEntry(entry, remainingPaths);
+          if (path != null) {
+            // Only the current entry is read, so the handler must not close the archive stream
+            current = new CountingInputStream(new FilterInputStream(tar) {
+              @Override
+              public void close() {
+              }
+            });
+            try (Reader reader = new InputStreamReader(current, StandardCharsets.UTF_8)) {
+              handler.handle(path, reader);
+            }
+            remainingPaths.remove(path);
+          }
+        }
+      }
+    } else {
+      for (String path : paths) {
+        File file = findFile(path);
+        if (file == null) {
+          continue;
+        }
+        current = new CountingInputStream(decompress(file));
+        try (Reader reader = new InputStreamReader(current, StandardCharsets.UTF_8)) {
+          handler.handle(path, reader);
+        }
+        remainingPaths.remove(path);
+      }
+    }
+
+    if (!remainingPaths.isEmpty()) {
+      throw new FileNotFoundException(
+          String.format("Missing data file: %s", remainingPaths.iterator().next()));
+    }
+  }
+
+  // Bytes read so far from the file that is currently being handled
+  long bytesRead() {
+    return current == null ? 0 : current.count;
+  }
+
+  File findFile(String path) {
+    for (String suffix : new String[] {"", ".gz", ".zst"}) {
+      File file = new File(location, path + suffix);
+      if (file.isFile()) {
+        return file;
+      }
+    }
+    return null;
+  }
+
+  // Archives usually contain a top-level directory, so entries are matched by suffix
+  static String matchEntry(TarArchiveEntry entry, Set<String> paths) {
+    if (!entry.isFile()) {
+      return null;
+    }
+    for (String path : paths) {
+      if (entry.getName().equals(path) || entry.getName().endsWith("/" + path)) {
+        return path;
+      }
+    }
+    return null;
+  }
+
+  static InputStream decompress(File file) throws IOException {
+    InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+    if (file.getName().endsWith(".gz")) {
+      return inBackground(new GZIPInputStream(in, 1 << 16));
+    }
+    if (file.getName().endsWith(".zst")) {
+      return inBackground(new ZstdCompressorInputStream(in));
+    }
+    return in;
+  }
+
+  // Reads the stream on a separate thread and hands the bytes over through a pipe
+  static InputStream inBackground(InputStream in) throws IOException {
+    BackgroundInputStream pipeIn = new BackgroundInputStream();
+    PipedOutputStream pipeOut = new PipedOutputStream(pipeIn);
+    Thread thread = new Thread(() -> {
+      byte[] buffer = new byte[1 << 16];
+      try {
+        int numBytes;
+        while ((numBytes = in.read(buffer)) != -1) {
+          pipeOut.write(buffer, 0, numBytes);
+        }
+      } catch (Throwable e) {
+        // Set before closing the pipe, so the reader sees it when reaching the end. Any error
+        // counts, otherwise the reader would silently get partial data.
+        pipeIn.error = e;
+      } finally {
+        try {
+          in.close();
+          pipeOut.close();
+        } catch (IOException e) {
+          // Nothing left to clean up
+        }
+      }
+    }, "decompress");
+    thread.setDaemon(true);
+    thread.start();
+    return pipeIn;
+  }
+
+  // Reading end of the pipe, which rethrows any error from the decompression thread instead of
+  // ending the data early
+  static class BackgroundInputStream extends PipedInputStream {
+    volatile Throwable error;
+
+    BackgroundInputStream() {
+      super(PIPE_BUFFER_SIZE);
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+      return checkError(super.read());
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+      return checkError(super.read(b, off, len));
+    }
+
+    int checkError(int result) throws IOException {
+      if (result == -1 && error != null) {
+        if (error instanceof IOException) {
+          throw (IOException) error;
+        }
+        throw new IOException("Decompression failed", error);
+      }
+      return result;
+    }
+  }
+
+  // Counts the bytes read
+  static class CountingInputStream extends InputStream {
+    InputStream in;
+    long count = 0;
+
+    CountingInputStream(InputStream in) {
+      this.in = in;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int result = in.read();
+      if (result != -1) {
+        count++;
+      }
+      return result;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int numBytes = in.read(b, off, len);
+      if (numBytes > 0) {
+        count += numBytes;
+      }
+      return numBytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,219 @@
+package com.github.nimobeeren.thesis.janusgraph;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+// Sorts edges with bounded memory. Edges are buffered and sorted in memory, and when the buffer is
+// full it is written to a temporary file (a run). Afterwards, all runs are merged.
+// Endpoints are identified by their storage key instead of their vertex ID, because the keys are
+// ordered like the rows in the storage backend (see IDManager.getKey()). Keys are compared as
+// unsigned, like the bytes of the backend.
+public class ExternalEdgeSort implements AutoCloseable {
+  static final Comparator<SortedEdge> BY_SOURCE = (a, b) -> {
+    int result = Long.compareUnsigned(a.sourceKey, b.sourceKey);
+    return result != 0 ? result : Long.compareUnsigned(a.targetKey, b.targetKey);
+  };
+  static final Comparator<SortedEdge> BY_TARGET = (a, b) -> {
+    int result = Long.compareUnsigned(a.targetKey, b.targetKey);
+    return result != 0 ? result : Long.compareUnsigned(a.sourceKey, b.sourceKey);
+  };
+
+  static class SortedEdge {
+    long sourceKey;
+    long targetKey;
+    // Raw property value, or null if the edge has no property
+    String value;
+
+    SortedEdge(long sourceKey, long targetKey, String value) {
+      this.sourceKey = sourceKey;
+      this.targetKey = targetKey;
+      this.value = value;
+    }
+  }
+
+  interface EdgeHandler {
+    void handle(SortedEdge edge) throws Exception;
+  }
+
+  // Reads the edges of a run one by one while merging
+  static class Run {
+    DataInputStream in;
+    SortedEdge head;
+
+    Run(File file) throws IOException {
+      this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+    }
+
+    // Returns false if the run is exhausted
+    boolean advance() throws IOException {
+      try {
+        long sourceKey = in.readLong();
+        long targetKey = in.readLong();
+        String value = in.readBoolean() ? in.readUTF() : null;
+        head = new SortedEdge(sourceKey, targetKey, value);
+        return true;
+      } catch (EOFException e) {
+        in.close();
+        return false;
+      }
+    }
+  }
+
+  Comparator<SortedEdge> order;
+  int maxEdgesInMemory;
+  // Where the runs are written, or null for the default temporary directory
+  File runDirectory;
+  List<SortedEdge> buffer = new ArrayList<SortedEdge>();
+  List<File> runFiles = new ArrayList<File>();
+  long numEdges = 0;
+
+  ExternalEdgeSort(Comparator<SortedEdge> order, int maxEdgesInMemory, File runDirectory) {
+    this.order = order;
+    this.maxEdgesInMemory = maxEdgesInMemory;
+    this.runDirectory = runDirectory;
+  }
+
+  void add(SortedEdge edge) throws IOException {
+    buffer.add(edge);
+    numEdges++;
+    if (buffer.size() >= maxEdgesInMemory) {
+      spill();
+    }
+  }
+
+  void spill() throws IOException {
+    buffer.sort(order);
+    if (runDirectory != null && !runDirectory.isDirectory() && !runDirectory.mkdirs()) {
+      throw new IOException(String.format("Can't create directory %s", runDirectory));
+    }
+    File file = File.createTempFile("edges", ".run", runDirectory);
+    file.deleteOnExit();
+    runFiles.add(file);
+    try (DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+      for (SortedEdge edge : buffer) {
+        out.writeLong(edge.sourceKey);
+        out.writeLong(edge.targetKey);
+        out.writeBoolean(edge.value != null);
+        if (edge.value != null) {
+          out.writeUTF(edge.value);
+        }
+      }
+    }
+    buffer = new ArrayList<SortedEdge>();
+  }
+
+  // Writes the buffered edges to a run, so they don't take up memory while the edges of another
+  // sort are buffered
+  void flush() throws IOException {
+    if (!buffer.isEmpty()) {
+      spill();
+    }
+  }
+
+  // Calls the handler for every edge in sorted order. The edges can only be read once.
+  void forEachSorted(EdgeHandler handler) throws Exception {
+    if (runFiles.isEmpty()) {
+      // Everything fits in memory, no need to write anything to disk. Edges are released as soon
+      // as they are handled, because the handler usually adds them to another sort.
+      List<SortedEdge> edges = buffer;
+      buffer = new ArrayList<SortedEdge>();
+      edges.sort(order);
+      for (int i = 0; i < edges.size(); i++) {
+        SortedEdge edge = edges.get(i);
+        edges.set(i, null);
+        handler.handle(edge);
+      }
+      return;
+    }
+    if (!buffer.isEmpty()) {
+      spill();
+    }
+
+    // Merge all runs by repeatedly taking the smallest head
+    PriorityQueue<Run> queue =
+        new PriorityQueue<Run>(runFiles.size(), (a, b) -> order.compare(a.head, b.head));
+    try {
+      for (File file : runFiles) {
+        Run run = new Run(file);
+        if (run.advance()) {
+          queue.add(run);
+        }
+      }
+      while (!queue.isEmpty()) {
+        Run run = queue.poll();
+        handler.handle(run.head);
+        if (run.advance()) {
+          queue.add(run);
+        }
+      }
+    } finally {
+      for (Run run : queue) {
+        run.in.close();
+      }
+    }
+  }
+
+  // Passes every edge to lowDegree or highDegree, depending on whether its target has fewer than
+  // threshold edges. Only works when sorting by target, and holds at most threshold edges in
+  // memory.
+  void splitByInDegree(int threshold, EdgeHandler lowDegree, EdgeHandler highDegree)
+      throws Exception {
+    List<SortedEdge> targetEdges = new ArrayList<SortedEdge>();
+    forEachSorted(new EdgeHandler() {
+      long targetKey;
+      long numTargetEdges = 0;
+
+      @Override
+      public void handle(SortedEdge edge) throws Exception {
+        if (numTargetEdges > 0 && edge.targetKey != targetKey) {
+          // The previous target is done, and had fewer edges than the threshold if any are left
+          for (SortedEdge targetEdge : targetEdges) {
+            lowDegree.handle(targetEdge);
+          }
+          targetEdges.clear();
+          numTargetEdges = 0;
+        }
+        targetKey = edge.targetKey;
+        if (++numTargetEdges < threshold) {
+          targetEdges.add(edge);
+          return;
+        }
+        if (numTargetEdges == threshold) {
+          for (SortedEdge targetEdge : targetEdges) {
+            highDegree.handle(targetEdge);
+          }
+          targetEdges.clear();
+        }
+        highDegree.handle(edge);
+      }
+    });
+    for (SortedEdge targetEdge : targetEdges) {
+      lowDegree.handle(targetEdge);
+    }
+  }
+
+  @Override
+  public void close() {
+    for (File file : runFiles) {
+      file.delete();
+    }
+    runFiles.clear();
+    buffer = new ArrayList<SortedEdge>();
+    // Only succeeds once the runs of all other sorts in the directory are removed as well
+    if (runDirectory != null) {
+      runDirectory.delete();
+    }
+  }
+}
@@ -1,7 +1,11 @@
 package com.github.nimobeeren.thesis.janusgraph;
 
 import java.io.File;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
 import org.apache.commons.lang.NotImplementedException;
 import org.apache.tinkerpop.gremlin.structure.Element;
 import org.janusgraph.core.JanusGraph;
@@ -15,6 +19,11 @@ import picocli.CommandLine.Parameters;
     subcommands = CommandLine.HelpCommand.class)
 public class JanusGraphSchema {
 
+  static final String STORAGE_DIRECTORY = "/var/lib/janusgraph/data";
+  // The benchmark drops its graph for every scale factor, so it doesn't use the data of the
+  // other commands
+  static final String BENCHMARK_STORAGE_DIRECTORY = "/var/lib/janusgraph/benchmark";
+
   JanusGraphFactory.Builder graphConfig;
 
   enum Dataset {
@@ -24,12 +33,23 @@ public class JanusGraphSchema {
   public JanusGraphSchema() {
     this.graphConfig = JanusGraphFactory.build();
     this.graphConfig.set("storage.backend", "berkeleyje");
-    this.graphConfig.set("storage.directory", "/var/lib/janusgraph/data");
+    this.graphConfig.set("storage.directory", STORAGE_DIRECTORY);
     this.graphConfig.set("schema.default", "none"); // disable automatic schema generation in favor
                                                     // of explicit schema
     this.graphConfig.set("schema.constraints", "true"); // enable property and edge connection
                                                         // constraints
-    this.graphConfig.set("cache.db-cache", "false"); // disable caching
+    this.graphConfig.set("cache.db-cache", "false"); // disable caching, see ValidationCache
+  }
+
+  DataModel createModel(Dataset dataset, JanusGraph graph) {
+    switch (dataset) {
+      case recommendations:
+        return new RecommendationsModel(graph);
+      case snb:
+        return new SNBModel(graph);
+      default:
+        throw new NotImplementedException();
+    }
   }
 
   @Command
@@ -37,11 +57,47 @@ public class JanusGraphSchema {
       @Parameters(paramLabel = "dataset",
           description = "One of the dataset names: ${COMPLETION-CANDIDATES}") Dataset dataset,
       @Parameters(paramLabel = "path",
-          description = "Path to a directory containing all required CSV files") File path,
+          description = "Path to a directory containing all required CSV files, or a (compressed) tar archive of it (snb only)") File path,
       @Option(names = {"-D", "--drop"},
-          description = {"Drop all existing data"}) boolean shouldDrop)
+          description = {"Drop all existing data"}) boolean shouldDrop,
+      @Option(names = {"--jfr"}, paramLabel = "file",
+          description = "Write a Java Flight Recorder recording of the load to this file") File jfrFile,
+      @Option(names = {"--remote"}, paramLabel = "host:port",
+          description = "Load into a JanusGraph instance in Gremlin Server instead of the embedded graph (snb only)") String remoteAddress,
+      @Option(names = {"--in-flight"}, defaultValue = "8",
+          description = "Maximum number of concurrent requests when loading remotely (default: ${DEFAULT-VALUE})") int maxInFlight,
+      @Option(names = {"--batch-size"}, defaultValue = "1000",
+          description = "Number of rows per request when loading remotely (default: ${DEFAULT-VALUE})") int batchSize)
       throws Exception {
 
+    if (remoteAddress != null) {
+      if (dataset != Dataset.snb) {
+        // The recommendations dataset sets vertex IDs, which needs the ID manager of the graph
+        throw new NotImplementedException("Remote loading is only supported for snb");
+      }
+      if (shouldDrop) {
+        throw new IllegalArgumentException("Can't drop a remote graph, drop it on the server");
+      }
+      if (jfrFile != null) {
+        // The loading happens on the server, so a local recording would show nothing useful
+        throw new IllegalArgumentException("Can't record a remote load, use --jfr without --remote");
+      }
+      System.out.println("Connecting to remote graph...");
+      try (RemoteGraph remote = new RemoteGraph(remoteAddress, maxInFlight)) {
+        System.out.println("Loading graph...");
+        long startTime = System.currentTimeMillis();
+        RemoteLoader loader = new RemoteLoader(remote, batchSize, maxInFlight);
+        // The server's storage directory isn't reachable from here, so the dictionaries are kept
+        // on this machine, in the same place as for the embedded graph
+        loader.dictionaryFile = new File(STORAGE_DIRECTORY + DataModel.DICTIONARY_SUFFIX);
+        loader.loadSNB(path);
+        long endTime = System.currentTimeMillis();
+        System.out.println("Done");
+        System.out.println(String.format("Took %d ms", endTime - startTime));
+      }
+      return;
+    }
+
     System.out.println("Opening graph...");
     if (dataset == Dataset.recommendations) {
       // Enable manual setting of IDs, because this dataset contains globally unique IDs
@@ -55,23 +111,31 @@ public class JanusGraphSchema {
       graph = graphConfig.open();
     }
 
-    System.out.println("Loading graph...");
-    DataModel model;
-    switch (dataset) {
-      case recommendations:
-        model = new RecommendationsModel(graph);
-        break;
-      case snb:
-        model = new SNBModel(graph);
-        break;
-      default:
-        throw new NotImplementedException();
+    Recording recording = null;
+    if (jfrFile != null) {
+      // The load events are enabled by default, so any configuration will include them
+      recording = new Recording(Configuration.getConfiguration("profile"));
+      recording.setDestination(jfrFile.toPath());
+      recording.start();
     }
+
+    System.out.println("Loading graph...");
+    DataModel model = createModel(dataset, graph);
     long startTime = System.currentTimeMillis();
-    model.load(path);
+    try {
+      model.load(path);
+    } finally {
+      // Also keep the recording of a failed load
+      if (recording != null) {
+        // Writes the recording to the destination
+        recording.stop();
+        recording.close();
+      }
+    }
     long endTime = System.currentTimeMillis();
 
     System.out.println("Done");
+    model.profiler.printSummary();
     System.out.println(String.format("Took %d ms", endTime - startTime));
   }
 
@@ -80,9 +144,45 @@ public class JanusGraphSchema {
       @Parameters(paramLabel = "dataset",
           description = "One of the dataset names: ${COMPLETION-CANDIDATES}") Dataset dataset,
       @Option(names = {"-b", "--boolean"},
-          description = "Only check whether the graph conforms to the schema or not. This is faster than enumerating all the violating elements") boolean validateBoolean) {
-    System.out.println("Opening graph...");
-    JanusGraph graph = graphConfig.open();
+          description = "Only check whether the graph conforms to the schema or not. This is faster than enumerating all the violating elements") boolean validateBoolean,
+      @Option(names = {"-c", "--count"},
+          description = "Only count the violating elements by rule and label. This doesn't send the violating elements back") boolean countOnly,
+      @Option(names = {"--remote"}, paramLabel = "host:port",
+          description = "Validate a JanusGraph instance in Gremlin Server instead of the embedded graph") String remoteAddress,
+      @Option(names = {"--cache"}, paramLabel = "fraction", arity = "0..1", fallbackValue = "0.3",
+          description = "Enable the database-level cache with this fraction of the heap (default: ${FALLBACK-VALUE}), the BerkeleyJE cache gets the rest of 0.75") Double cacheFraction,
+      @Option(names = {"--prewarm"},
+          description = "Read all vertices, properties and edges before validating, so the first run finds them in the caches") boolean prewarm,
+      @Option(names = {"-n", "--runs"}, defaultValue = "1",
+          description = "Number of times to validate in the same process (default: ${DEFAULT-VALUE})") int numRuns)
+      throws Exception {
+    if (validateBoolean && countOnly) {
+      throw new IllegalArgumentException("--boolean and --count can't be used together");
+    }
+    JanusGraph graph = null;
+    RemoteGraph remote = null;
+    ValidationCache cache = null;
+    if (remoteAddress != null) {
+      if (cacheFraction != null || prewarm) {
+        throw new IllegalArgumentException("The cache options only apply to the embedded graph");
+      }
+      System.out.println("Connecting to remote graph...");
+      remote = new RemoteGraph(remoteAddress, Runtime.getRuntime().availableProcessors());
+    } else {
+      if (cacheFraction != null) {
+        cache = new ValidationCache(graphConfig, cacheFraction);
+      }
+      System.out.println("Opening graph...");
+      graph = graphConfig.open();
+      if (cache != null) {
+        cache.setGraph(graph);
+      }
+      if (prewarm) {
+        System.out.println("Pre-warming...");
+        long numElements = ValidationCache.prewarm(graph);
+        System.out.println(String.format("Read %d elements", numElements));
+      }
+    }
 
     // Objects can't have labels that are not allowed (because automatic schema is disabled)
     // Property values can't have the wrong datatype (because of PropertyKey.dataType)
@@ -90,36 +190,204 @@ public class JanusGraphSchema {
     // Edges can't connect the wrong types of nodes (because of addConnection)
     // The rest is checked in DataModel.validate()
 
-    System.out.println("Validating...");
-    DataModel model;
+    try {
+      DataModel model = createModel(dataset, graph);
+      if (remote != null) {
+        model.remoteTraversal = remote.g;
+      }
+      for (int run = 0; run < numRuns; run++) {
+        System.out.println("Validating...");
+        if (cache != null) {
+          cache.startMeasurement();
+        }
+        long startTime = System.currentTimeMillis();
+        if (validateBoolean) {
+          boolean isValid = model.validateBoolean();
+          if (isValid) {
+            System.out.println("Graph conforms to schema ✅");
+          } else {
+            System.out.println("Graph does not conform to schema ❌");
+          }
+        } else if (countOnly) {
+          long numViolatingElements = model.countViolations();
+          if (numViolatingElements == 0) {
+            System.out.println("All graph elements conform to schema ✅");
+          } else {
+            System.out.println(
+                String.format("%d elements do not conform to schema ❌", numViolatingElements));
+            for (Map.Entry<String, Map<String, Long>> entry : model.violationsByRule.entrySet()) {
+              for (Map.Entry<String, Long> labelEntry : entry.getValue().entrySet()) {
+                System.out.println(String.format("  %s (%s): %d", entry.getKey(),
+                    labelEntry.getKey(), labelEntry.getValue()));
+              }
+            }
+          }
+        } else {
+          Set<Element> violatingElements = model.validate();
+          if (violatingElements.size() == 0) {
+            System.out.println("All graph elements conform to schema ✅");
+          } else {
+            System.out.println(
+                String.format("%d elements do not conform to schema ❌", violatingElements.size()));
+          }
+        }
+        long endTime = System.currentTimeMillis();
+        // Only the caches should carry over to the next run, not the transaction
+        model.rollback();
+        System.out.println(String.format("Took %d ms", endTime - startTime));
+        if (cache != null) {
+          cache.printSummary();
+        }
+      }
+    } finally {
+      if (remote != null) {
+        remote.close();
+      }
+    }
+  }
+
+  @Command(name = "apply-updates")
+  void applyUpdates(
+      @Parameters(paramLabel = "dataset",
+          description = "One of the dataset names: ${COMPLETION-CANDIDATES}") Dataset dataset,
+      @Parameters(paramLabel = "path",
+          description = "Path to a directory containing inserts/ and/or deletes/ directories with the same layout as the full data set") File path)
+      throws Exception {
+    System.out.println("Opening graph...");
+    if (dataset == Dataset.recommendations) {
+      // Enable manual setting of IDs, because this dataset contains globally unique IDs
+      graphConfig.set("graph.set-vertex-id", "true");
+    }
+    JanusGraph graph = graphConfig.open();
+
+    System.out.println("Applying updates...");
+    DataModel model = createModel(dataset, graph);
+    model.loadDictionaries();
+    long startTime = System.currentTimeMillis();
+    Set<Object> affectedVertexIds;
+    try {
+      affectedVertexIds = model.applyUpdates(path);
+    } finally {
+      // Updates are committed in batches, so new codes may be in use even if some batch failed
+      model.saveDictionaries();
+    }
+    long endTime = System.currentTimeMillis();
+    System.out.println(String.format("Took %d ms", endTime - startTime));
+
+    // Only the changed elements and their neighbors need to be checked again
+    System.out.println(
+        String.format("Validating %d affected vertices...", affectedVertexIds.size()));
+    startTime = System.currentTimeMillis();
+    Set<Element> violatingElements = model.validate(affectedVertexIds);
+    endTime = System.currentTimeMillis();
+    if (violatingElements.size() == 0) {
+      System.out.println("All affected graph elements conform to schema ✅");
+    } else {
+      System.out.println(
+          String.format("%d elements do not conform to schema ❌", violatingElements.size()));
+    }
+    System.out.println(String.format("Took %d ms", endTime - startTime));
+  }
+
+  @Command(name = "benchmark")
+  int benchmark(
+      @Option(names = {"-d", "--data"}, required = true, paramLabel = "scale=path",
+          description = "SNB scale factor and the path to its data, may be repeated") Map<String, File> dataByScale,
+      @Option(names = {"-n", "--runs"}, defaultValue = "3",
+          description = "Number of runs per measurement (default: ${DEFAULT-VALUE})") int numRuns,
+      @Option(names = {"-o", "--output"}, paramLabel = "file",
+          description = "Append the measurements to this CSV file, in the format of analysis/results.csv") File outputFile,
+      @Option(names = {"--baseline"}, paramLabel = "file",
+          description = "Compare throughput with this file, or create it if it does not exist") File baselineFile,
+      @Option(names = {"--threshold"}, defaultValue = "0.2",
+          description = "Fail if throughput drops by more than this fraction (default: ${DEFAULT-VALUE})") double threshold,
+      @Option(names = {"--update-baseline"},
+          description = "Overwrite the baseline with the new measurements") boolean updateBaseline,
+      @Option(names = {"--storage"}, paramLabel = "dir", defaultValue = BENCHMARK_STORAGE_DIRECTORY,
+          description = "Storage directory of the benchmark graph, which is dropped for every scale factor (default: ${DEFAULT-VALUE})") File storageDirectory)
+      throws Exception {
+    if (storageDirectory.getAbsoluteFile().equals(new File(STORAGE_DIRECTORY))) {
+      throw new IllegalArgumentException(
+          "Can't run the benchmark in the storage directory of the loaded graph");
+    }
+    graphConfig.set("storage.directory", storageDirectory.getPath());
+    ScalingHarness harness = new ScalingHarness(graphConfig, numRuns);
+    harness.run(dataByScale);
+
+    if (outputFile != null) {
+      harness.writeResults(outputFile);
+    }
+    harness.printScalingCurves();
+
+    if (baselineFile == null) {
+      return 0;
+    }
+    if (updateBaseline || !baselineFile.exists()) {
+      harness.writeBaseline(baselineFile);
+      System.out.println(String.format("Wrote baseline to %s", baselineFile));
+      return 0;
+    }
+    if (harness.checkBaseline(baselineFile, threshold)) {
+      System.out.println("Throughput is within the threshold of the baseline ✅");
+      return 0;
+    } else {
+      System.out.println("Throughput regressed compared to the baseline ❌");
+      return 1;
+    }
+  }
+
+  @Command(name = "export-columnar")
+  void exportColumnar(@Parameters(paramLabel = "path",
+      description = "Path to a directory to write the columnar snapshot to") File path)
+      throws Exception {
+    System.out.println("Opening graph...");
+    JanusGraph graph = graphConfig.open();
+
+    System.out.println("Exporting graph...");
+    long startTime = System.currentTimeMillis();
+    new ColumnarStore(path).export(graph);
+    long endTime = System.currentTimeMillis();
+
+    System.out.println("Done");
+    System.out.println(String.format("Took %d ms", endTime - startTime));
+  }
+
+  @Command(name = "validate-columnar")
+  void validateColumnar(
+      @Parameters(paramLabel = "dataset",
+          description = "One of the dataset names: ${COMPLETION-CANDIDATES}") Dataset dataset,
+      @Parameters(paramLabel = "path",
+          description = "Path to a directory containing a snapshot made with export-columnar") File path)
+      throws Exception {
+    // The graph is not opened, all data is read from the snapshot
+    List<ColumnarRule> rules;
     switch (dataset) {
       case recommendations:
-        model = new RecommendationsModel(graph);
+        rules = RecommendationsModel.columnarRules();
         break;
       case snb:
-        model = new SNBModel(graph);
+        rules = SNBModel.columnarRules();
         break;
       default:
         throw new NotImplementedException();
     }
+
+    System.out.println("Validating...");
+    ColumnarValidator validator = new ColumnarValidator(new ColumnarStore(path));
     long startTime = System.currentTimeMillis();
-    if (validateBoolean) {
-      boolean isValid = model.validateBoolean();
-      if (isValid) {
-        System.out.println("Graph conforms to schema ✅");
-      } else {
-        System.out.println("Graph does not conform to schema ❌");
-      }
+    long numViolatingElements = validator.validate(rules);
+    long endTime = System.currentTimeMillis();
+    if (numViolatingElements == 0) {
+      System.out.println("All graph elements conform to schema ✅");
     } else {
-      Set<Element> violatingElements = model.validate();
-      if (violatingElements.size() == 0) {
-        System.out.println("All graph elements conform to schema ✅");
-      } else {
-        System.out.println(
-            String.format("%d elements do not conform to schema ❌", violatingElements.size()));
+      System.out.println(
+          String.format("%d elements do not conform to schema ❌", numViolatingElements));
+      for (Map.Entry<String, Long> entry : validator.violationsByRule.entrySet()) {
+        if (entry.getValue() > 0) {
+          System.out.println(String.format("  %s: %d", entry.getKey(), entry.getValue()));
+        }
       }
     }
-    long endTime = System.currentTimeMillis();
     System.out.println(String.format("Took %d ms", endTime - startTime));
   }
 
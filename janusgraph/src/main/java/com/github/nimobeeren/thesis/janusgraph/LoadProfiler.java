@@ -0,0 +1,238 @@
+package com.github.nimobeeren.thesis.janusgraph;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.management.ListenerNotFoundException;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import com.sun.management.GarbageCollectionNotificationInfo;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+// Keeps track of where time and memory go while loading, both as Java Flight Recorder events (which
+// are only recorded when a recording is running) and as a summary printed at the end
+public class LoadProfiler {
+
+  @Name("thesis.LoadPhase")
+  @Label("Load Phase")
+  @Category({"Thesis", "Load"})
+  static class PhaseEvent extends Event {
+    @Label("Phase")
+    String phase;
+    @Label("Rows")
+    long rows;
+    @Label("Bytes Read")
+    @DataAmount
+    long bytesRead;
+    @Label("Allocated")
+    @DataAmount
+    long allocatedBytes;
+  }
+
+  @Name("thesis.LoadFile")
+  @Label("Load File")
+  @Category({"Thesis", "Load"})
+  static class FileEvent extends Event {
+    @Label("Phase")
+    String phase;
+    @Label("Path")
+    String path;
+    @Label("Rows")
+    long rows;
+    @Label("Bytes Read")
+    @DataAmount
+    long bytesRead;
+    @Label("Allocated")
+    @DataAmount
+    long allocatedBytes;
+  }
+
+  // The duration of the event is the commit latency
+  @Name("thesis.Commit")
+  @Label("Commit")
+  @Category({"Thesis", "Load"})
+  static class CommitEvent extends Event {
+    @Label("Operations")
+    long operations;
+  }
+
+  static class PhaseStats {
+    String name;
+    long rows = 0;
+    long bytesRead = 0;
+    long allocatedBytes = 0;
+    long nanos = 0;
+    long commits = 0;
+    long commitNanos = 0;
+
+    PhaseStats(String name) {
+      this.name = name;
+    }
+  }
+
+  List<PhaseStats> phases = new ArrayList<PhaseStats>();
+  PhaseStats currentPhase;
+  PhaseEvent phaseEvent;
+  long phaseStartNanos;
+  long phaseStartAllocated;
+  FileEvent fileEvent;
+  long fileStartAllocated;
+  long gcCountAtStart;
+  long gcMillisAtStart;
+  // Highest total heap usage seen, see sampleHeap()
+  volatile long peakHeap = 0;
+  Set<String> heapPoolNames = new HashSet<String>();
+  NotificationListener gcListener = (notification, handback) -> {
+    if (notification.getType()
+        .equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+      GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo
+          .from((CompositeData) notification.getUserData());
+      // All pools are measured at the same moment, so their sum is a real total
+      long used = 0;
+      for (Map.Entry<String, MemoryUsage> entry : info.getGcInfo().getMemoryUsageBeforeGc()
+          .entrySet()) {
+        if (heapPoolNames.contains(entry.getKey())) {
+          used += entry.getValue().getUsed();
+        }
+      }
+      updatePeakHeap(used);
+    }
+  };
+
+  void start() {
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        heapPoolNames.add(pool.getName());
+      }
+    }
+    // The heap is fullest right before a collection, so that is where the peak is measured
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      if (gc instanceof NotificationEmitter) {
+        ((NotificationEmitter) gc).addNotificationListener(gcListener, null, null);
+      }
+    }
+    peakHeap = 0;
+    sampleHeap();
+    gcCountAtStart = gcCount();
+    gcMillisAtStart = gcMillis();
+  }
+
+  void stop() {
+    sampleHeap();
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      if (gc instanceof NotificationEmitter) {
+        try {
+          ((NotificationEmitter) gc).removeNotificationListener(gcListener);
+        } catch (ListenerNotFoundException e) {
+          // Was never added
+        }
+      }
+    }
+  }
+
+  // Also sampled between collections, in case the peak is at the end of the load
+  void sampleHeap() {
+    updatePeakHeap(ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+  }
+
+  synchronized void updatePeakHeap(long used) {
+    peakHeap = Math.max(peakHeap, used);
+  }
+
+  void beginPhase(String name) {
+    currentPhase = new PhaseStats(name);
+    phases.add(currentPhase);
+    phaseEvent = new PhaseEvent();
+    phaseEvent.phase = name;
+    phaseEvent.begin();
+    phaseStartNanos = System.nanoTime();
+    phaseStartAllocated = allocatedBytes();
+  }
+
+  void endPhase() {
+    currentPhase.nanos = System.nanoTime() - phaseStartNanos;
+    currentPhase.allocatedBytes = allocatedBytes() - phaseStartAllocated;
+    phaseEvent.end();
+    phaseEvent.rows = currentPhase.rows;
+    phaseEvent.bytesRead = currentPhase.bytesRead;
+    phaseEvent.allocatedBytes = currentPhase.allocatedBytes;
+    phaseEvent.commit();
+  }
+
+  void beginFile(String path) {
+    fileEvent = new FileEvent();
+    fileEvent.phase = currentPhase.name;
+    fileEvent.path = path;
+    fileEvent.begin();
+    fileStartAllocated = allocatedBytes();
+  }
+
+  void endFile(long rows, long bytesRead) {
+    sampleHeap();
+    currentPhase.rows += rows;
+    currentPhase.bytesRead += bytesRead;
+    fileEvent.end();
+    fileEvent.rows = rows;
+    fileEvent.bytesRead = bytesRead;
+    fileEvent.allocatedBytes = allocatedBytes() - fileStartAllocated;
+    fileEvent.commit();
+  }
+
+  void recordCommit(long nanos) {
+    if (currentPhase != null) {
+      currentPhase.commits++;
+      currentPhase.commitNanos += nanos;
+    }
+  }
+
+  void printSummary() {
+    System.out.println(String.format("%-24s %12s %10s %14s %10s %8s %12s", "Phase", "Rows",
+        "MB read", "MB allocated", "Time (ms)", "Commits", "Commit (ms)"));
+    for (PhaseStats phase : phases) {
+      System.out.println(String.format("%-24s %12d %10.1f %14.1f %10d %8d %12d", phase.name,
+          phase.rows, phase.bytesRead / 1e6, phase.allocatedBytes / 1e6, phase.nanos / 1000000,
+          phase.commits, phase.commitNanos / 1000000));
+    }
+
+    System.out.println(String.format(
+        "Peak heap: %.1f MB (all pools at once), GC: %d collections, %d ms", peakHeap / 1e6, gcCount() - gcCountAtStart, gcMillis() - gcMillisAtStart));
+  }
+
+  // Only counts allocations on the loading thread
+  static long allocatedBytes() {
+    java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    if (threadBean instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) threadBean)
+          .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return 0;
+  }
+
+  static long gcCount() {
+    long count = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      count += Math.max(gc.getCollectionCount(), 0);
+    }
+    return count;
+  }
+
+  static long gcMillis() {
+    long millis = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      millis += Math.max(gc.getCollectionTime(), 0);
+    }
+    return millis;
+  }
+}
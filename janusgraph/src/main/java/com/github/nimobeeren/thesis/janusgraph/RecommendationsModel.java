@@ -7,21 +7,25 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVRecord;
 import org.apache.tinkerpop.gremlin.process.traversal.P;
+import org.apache.tinkerpop.gremlin.process.traversal.Traversal;
 import org.apache.tinkerpop.gremlin.process.traversal.dsl.graph.GraphTraversal;
-import org.apache.tinkerpop.gremlin.process.traversal.dsl.graph.GraphTraversalSource;
+import org.apache.tinkerpop.gremlin.structure.Direction;
 import org.apache.tinkerpop.gremlin.structure.Edge;
 import org.apache.tinkerpop.gremlin.structure.Vertex;
+import org.apache.tinkerpop.gremlin.structure.VertexProperty;
 import org.janusgraph.core.Cardinality;
 import org.janusgraph.core.EdgeLabel;
 import org.janusgraph.core.JanusGraph;
@@ -38,15 +42,35 @@ public class RecommendationsModel extends DataModel {
 
   Map<String, String> filePathByVertex = new HashMap<String, String>();
   Map<String, String> filePathByEdge = new HashMap<String, String>();
-  SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
   CSVFormat csvFormat;
   IDManager idManager;
 
+  long COMMIT_EVERY_N_RECORDS = 10000;
+
   RecommendationsModel(JanusGraph graph) {
     super(graph);
     this.csvFormat =
         CSVFormat.Builder.create().setHeader().setSkipHeaderRecord(true).setNullString("").build();
-    this.idManager = ((StandardJanusGraph) graph).getIDManager();
+    if (graph != null) {
+      // Not available when validating a remote graph, which doesn't need it
+      this.idManager = ((StandardJanusGraph) graph).getIDManager();
+    }
+
+    // Low-cardinality strings
+    encoder.addDictionary("countries", "countries");
+    encoder.addDictionary("languages", "languages");
+
+    // Set file path for all schema elements
+    filePathByVertex.put("Movie", "movies.csv");
+    filePathByVertex.put("Actor", "actors.csv");
+    filePathByVertex.put("Director", "directors.csv");
+    filePathByVertex.put("ActorDirector", "actorDirectors.csv");
+    filePathByVertex.put("User", "users.csv");
+    filePathByVertex.put("Genre", "genres.csv");
+    filePathByEdge.put("ACTED_IN", "actedIn.csv");
+    filePathByEdge.put("DIRECTED", "directed.csv");
+    filePathByEdge.put("RATED", "rated.csv");
+    filePathByEdge.put("IN_GENRE", "inGenre.csv");
   }
 
   Iterable<CSVRecord> parseFile(File dir, String fileName) throws IOException {
@@ -76,14 +100,10 @@ public class RecommendationsModel extends DataModel {
       splitValues.add(rawValue);
     }
 
-    // Parse the string values if needed
-    // For anything other than dates, the value is a string which is fine
-    List<Object> values = new ArrayList<Object>(splitValues);
-    if (propKey.dataType() == Date.class) {
-      values = new ArrayList<Object>();
-      for (String splitValue : splitValues) {
-        values.add(dateFormat.parse(splitValue));
-      }
+    // Parse the string values into the type of the key
+    List<Object> values = new ArrayList<Object>();
+    for (String splitValue : splitValues) {
+      values.add(encoder.encode(propKey, splitValue));
     }
 
     return values;
@@ -102,12 +122,12 @@ public class RecommendationsModel extends DataModel {
 
     // Property keys with datatypes and cardinalities
     PropertyKey budgetKey = mgmt.makePropertyKey("budget").dataType(Long.class).make();
-    PropertyKey countriesKey = mgmt.makePropertyKey("countries").dataType(String.class)
+    PropertyKey countriesKey = mgmt.makePropertyKey("countries").dataType(ValueEncoder.CODE_TYPE)
         .cardinality(Cardinality.LIST).make();
     PropertyKey imdbIdKey = mgmt.makePropertyKey("imdbId").dataType(String.class).make();
     PropertyKey imdbRatingKey = mgmt.makePropertyKey("imdbRating").dataType(Float.class).make();
     PropertyKey imdbVotesKey = mgmt.makePropertyKey("imdbVotes").dataType(Long.class).make();
-    PropertyKey languagesKey = mgmt.makePropertyKey("languages").dataType(String.class)
+    PropertyKey languagesKey = mgmt.makePropertyKey("languages").dataType(ValueEncoder.CODE_TYPE)
         .cardinality(Cardinality.LIST).make();
     PropertyKey movieIdKey = mgmt.makePropertyKey("movieId").dataType(String.class).make();
     PropertyKey plotKey = mgmt.makePropertyKey("plot").dataType(String.class).make();
@@ -159,52 +179,78 @@ public class RecommendationsModel extends DataModel {
     mgmt.addProperties(DIRECTED, roleKey);
     mgmt.addProperties(RATED, ratingKey, timestampKey);
 
-    // Set file path for all schema elements
-    filePathByVertex.put("Movie", "movies.csv");
-    filePathByVertex.put("Actor", "actors.csv");
-    filePathByVertex.put("Director", "directors.csv");
-    filePathByVertex.put("ActorDirector", "actorDirectors.csv");
-    filePathByVertex.put("User", "users.csv");
-    filePathByVertex.put("Genre", "genres.csv");
-    filePathByEdge.put("ACTED_IN", "actedIn.csv");
-    filePathByEdge.put("DIRECTED", "directed.csv");
-    filePathByEdge.put("RATED", "rated.csv");
-    filePathByEdge.put("IN_GENRE", "inGenre.csv");
-
     mgmt.commit();
   }
 
-  GraphTraversal<Vertex, Vertex> findViolatingVertices() {
-    GraphTraversalSource g = graph.traversal();
-
-    return g.V().or(
-        // Check for missing mandatory properties on vertices
-        hasLabel("Movie").or(hasNot("imdbId"), hasNot("movieId"), hasNot("title")),
-        hasLabel(P.within("Actor", "Director", "ActorDirector")).or(hasNot("name"),
-            hasNot("tmdbId"), hasNot("url")),
-        hasLabel("User").or(hasNot("name"), hasNot("userId")), hasLabel("Genre").hasNot("name"),
-        // Check for missing mandatory edges
-        hasLabel(P.within("Actor", "ActorDirector")).not(outE("ACTED_IN")),
-        hasLabel(P.within("Director", "ActorDirector")).not(outE("DIRECTED")),
-        hasLabel("Movie").not(outE("IN_GENRE")));
+  Map<String, Traversal<?, ?>> vertexRules() {
+    Map<String, Traversal<?, ?>> rules = new LinkedHashMap<String, Traversal<?, ?>>();
+
+    // Check for missing mandatory properties on vertices
+    rules.put("Movie properties",
+        hasLabel("Movie").or(hasNot("imdbId"), hasNot("movieId"), hasNot("title")));
+    rules.put("Person properties", hasLabel(P.within("Actor", "Director", "ActorDirector"))
+        .or(hasNot("name"), hasNot("tmdbId"), hasNot("url")));
+    rules.put("User properties", hasLabel("User").or(hasNot("name"), hasNot("userId")));
+    rules.put("Genre properties", hasLabel("Genre").hasNot("name"));
+    // Check for missing mandatory edges
+    rules.put("(Actor|ActorDirector)-[ACTED_IN]->()",
+        hasLabel(P.within("Actor", "ActorDirector")).not(outE("ACTED_IN")));
+    rules.put("(Director|ActorDirector)-[DIRECTED]->()",
+        hasLabel(P.within("Director", "ActorDirector")).not(outE("DIRECTED")));
+    rules.put("(Movie)-[IN_GENRE]->()", hasLabel("Movie").not(outE("IN_GENRE")));
+
+    return rules;
   }
 
-  GraphTraversal<Edge, Edge> findViolatingEdges() {
-    GraphTraversalSource g = graph.traversal();
+  Map<String, Traversal<?, ?>> edgeRules() {
+    Map<String, Traversal<?, ?>> rules = new LinkedHashMap<String, Traversal<?, ?>>();
 
     // Check for missing mandatory properties on edges
-    return g.E().hasLabel("RATED").or(hasNot("rating"), hasNot("timestamp"));
+    rules.put("RATED properties", hasLabel("RATED").or(hasNot("rating"), hasNot("timestamp")));
+
+    return rules;
+  }
+
+  GraphTraversal<Vertex, Edge> ruleEdges(GraphTraversal<Vertex, Vertex> vertices) {
+    return vertices.hasLabel("User").outE("RATED");
+  }
+
+  // Same rules as vertexRules() and edgeRules(), for use with ColumnarValidator
+  static List<ColumnarRule> columnarRules() {
+    List<ColumnarRule> rules = new ArrayList<ColumnarRule>();
+
+    rules.add(ColumnarRule.vertexProperties("Movie properties", new String[] {"Movie"}, "imdbId",
+        "movieId", "title"));
+    rules.add(ColumnarRule.vertexProperties("Person properties",
+        new String[] {"Actor", "Director", "ActorDirector"}, "name", "tmdbId", "url"));
+    rules.add(ColumnarRule.vertexProperties("User properties", new String[] {"User"}, "name",
+        "userId"));
+    rules.add(ColumnarRule.vertexProperties("Genre properties", new String[] {"Genre"}, "name"));
+    rules.add(ColumnarRule.vertexEdge("(Actor|ActorDirector)-[ACTED_IN]->()",
+        new String[] {"Actor", "ActorDirector"}, Direction.OUT, "ACTED_IN"));
+    rules.add(ColumnarRule.vertexEdge("(Director|ActorDirector)-[DIRECTED]->()",
+        new String[] {"Director", "ActorDirector"}, Direction.OUT, "DIRECTED"));
+    rules.add(ColumnarRule.vertexEdge("(Movie)-[IN_GENRE]->()", new String[] {"Movie"},
+        Direction.OUT, "IN_GENRE"));
+    rules.add(ColumnarRule.edgeProperties("RATED properties", new String[] {"RATED"}, "rating",
+        "timestamp"));
+
+    return rules;
   }
 
   public void loadData(File dataDir) throws IOException, ParseException {
     JanusGraphTransaction tx = graph.buildTransaction().enableBatchLoading().start();
 
     // Loop over all vertex labels
+    profiler.beginPhase("vertices");
     for (String vertexLabelName : filePathByVertex.keySet()) {
       VertexLabel vertexLabel = tx.getVertexLabel(vertexLabelName);
-      Iterable<CSVRecord> records = parseFile(dataDir, filePathByVertex.get(vertexLabelName));
+      String filePath = filePathByVertex.get(vertexLabelName);
+      Iterable<CSVRecord> records = parseFile(dataDir, filePath);
+      profiler.beginFile(filePath);
 
       // Loop over all records in the data file for that vertex
+      long numRecordsLoaded = 0;
       for (CSVRecord record : records) {
         Long vertexId = parseId(record.get("_id"));
         JanusGraphVertex vertex = tx.addVertex(vertexId, vertexLabel);
@@ -216,15 +262,23 @@ public class RecommendationsModel extends DataModel {
             vertex.property(propKey.name(), value);
           }
         }
+        numRecordsLoaded++;
       }
+
+      profiler.endFile(numRecordsLoaded, new File(dataDir, filePath).length());
     }
+    profiler.endPhase();
 
     // Loop over all edge labels
+    profiler.beginPhase("edges");
     for (String edgeLabelName : filePathByEdge.keySet()) {
       EdgeLabel edgeLabel = tx.getEdgeLabel(edgeLabelName);
-      Iterable<CSVRecord> records = parseFile(dataDir, filePathByEdge.get(edgeLabelName));
+      String filePath = filePathByEdge.get(edgeLabelName);
+      Iterable<CSVRecord> records = parseFile(dataDir, filePath);
+      profiler.beginFile(filePath);
 
       // Loop over all records in the data file for that edge
+      long numRecordsLoaded = 0;
       for (CSVRecord record : records) {
         Long startId = parseId(record.get("_start"));
         Long endId = parseId(record.get("_end"));
@@ -241,9 +295,165 @@ public class RecommendationsModel extends DataModel {
             edge.property(propKey.name(), value);
           }
         }
+        numRecordsLoaded++;
       }
+
+      profiler.endFile(numRecordsLoaded, new File(dataDir, filePath).length());
     }
 
+    // Everything is loaded in a single transaction, so this is the only commit
+    LoadProfiler.CommitEvent commitEvent = new LoadProfiler.CommitEvent();
+    commitEvent.begin();
+    long commitStartTime = System.nanoTime();
     tx.commit();
+    profiler.recordCommit(System.nanoTime() - commitStartTime);
+    commitEvent.end();
+    commitEvent.commit();
+    profiler.endPhase();
+  }
+
+  Set<Object> applyUpdates(File updatesDir) throws Exception {
+    File insertsDir = new File(updatesDir, "inserts");
+    File deletesDir = new File(updatesDir, "deletes");
+    Set<Object> affectedVertexIds = new HashSet<Object>();
+    TransactionBatch batch = new TransactionBatch(graph, COMMIT_EVERY_N_RECORDS);
+
+    // Upsert vertices
+    for (String vertexLabelName : filePathByVertex.keySet()) {
+      if (!new File(insertsDir, filePathByVertex.get(vertexLabelName)).isFile()) {
+        continue;
+      }
+      System.out.print(String.format("+%s ... ", vertexLabelName));
+      VertexLabel vertexLabel = batch.tx.getVertexLabel(vertexLabelName);
+      for (CSVRecord record : parseFile(insertsDir, filePathByVertex.get(vertexLabelName))) {
+        // Update the vertex if it already exists, otherwise create it
+        Long vertexId = parseId(record.get("_id"));
+        Iterator<Vertex> existing = batch.tx.vertices(vertexId);
+        Vertex vertex =
+            existing.hasNext() ? existing.next() : batch.tx.addVertex(vertexId, vertexLabel);
+
+        for (PropertyKey propKey : vertexLabel.mappedProperties()) {
+          // Replace all values, because some properties have multiple
+          Iterator<VertexProperty<Object>> oldProps = vertex.properties(propKey.name());
+          while (oldProps.hasNext()) {
+            oldProps.next().remove();
+          }
+          String rawValue = record.get(propKey.name());
+          for (Object value : parsePropertyValues(propKey, rawValue)) {
+            vertex.property(propKey.name(), value);
+          }
+        }
+
+        affectedVertexIds.add(vertexId);
+        batch.next();
+      }
+      System.out.println("✅");
+    }
+
+    // Insert edges
+    for (String edgeLabelName : filePathByEdge.keySet()) {
+      if (!new File(insertsDir, filePathByEdge.get(edgeLabelName)).isFile()) {
+        continue;
+      }
+      System.out.print(String.format("+%s ... ", edgeLabelName));
+      EdgeLabel edgeLabel = batch.tx.getEdgeLabel(edgeLabelName);
+      for (CSVRecord record : parseFile(insertsDir, filePathByEdge.get(edgeLabelName))) {
+        Long startId = parseId(record.get("_start"));
+        Long endId = parseId(record.get("_end"));
+        String fileName = "inserts/" + filePathByEdge.get(edgeLabelName);
+        Vertex start = findVertexOrSkip(batch, record.get("_start"), startId, fileName);
+        Vertex end = findVertexOrSkip(batch, record.get("_end"), endId, fileName);
+        if (start == null || end == null) {
+          continue;
+        }
+
+        // Update the edge if it already exists, otherwise create it
+        Edge edge = findEdge(start, edgeLabelName, end);
+        if (edge == null) {
+          edge = start.addEdge(edgeLabelName, end);
+        }
+        for (PropertyKey propKey : edgeLabel.mappedProperties()) {
+          String rawValue = record.get(propKey.name());
+          for (Object value : parsePropertyValues(propKey, rawValue)) {
+            edge.property(propKey.name(), value);
+          }
+        }
+
+        affectedVertexIds.add(startId);
+        affectedVertexIds.add(endId);
+        batch.next();
+      }
+      System.out.println("✅");
+    }
+
+    // Delete edges
+    for (String edgeLabelName : filePathByEdge.keySet()) {
+      if (!new File(deletesDir, filePathByEdge.get(edgeLabelName)).isFile()) {
+        continue;
+      }
+      System.out.print(String.format("-%s ... ", edgeLabelName));
+      for (CSVRecord record : parseFile(deletesDir, filePathByEdge.get(edgeLabelName))) {
+        Long startId = parseId(record.get("_start"));
+        Long endId = parseId(record.get("_end"));
+        Vertex start = findVertexOrSkip(batch, record.get("_start"), startId,
+            "deletes/" + filePathByEdge.get(edgeLabelName));
+        if (start == null) {
+          continue;
+        }
+        Iterator<Edge> edges = start.edges(Direction.OUT, edgeLabelName);
+        while (edges.hasNext()) {
+          Edge edge = edges.next();
+          if (edge.inVertex().id().equals(endId)) {
+            edge.remove();
+          }
+        }
+
+        affectedVertexIds.add(startId);
+        affectedVertexIds.add(endId);
+        batch.next();
+      }
+      System.out.println("✅");
+    }
+
+    // Delete vertices
+    for (String vertexLabelName : filePathByVertex.keySet()) {
+      if (!new File(deletesDir, filePathByVertex.get(vertexLabelName)).isFile()) {
+        continue;
+      }
+      System.out.print(String.format("-%s ... ", vertexLabelName));
+      for (CSVRecord record : parseFile(deletesDir, filePathByVertex.get(vertexLabelName))) {
+        Vertex vertex = findVertexOrSkip(batch, record.get("_id"), parseId(record.get("_id")),
+            "deletes/" + filePathByVertex.get(vertexLabelName));
+        if (vertex == null) {
+          continue;
+        }
+
+        // Neighbors may lose a mandatory edge
+        Iterator<Vertex> neighbors = vertex.vertices(Direction.BOTH);
+        while (neighbors.hasNext()) {
+          affectedVertexIds.add(neighbors.next().id());
+        }
+        affectedVertexIds.remove(vertex.id());
+        vertex.remove();
+
+        batch.next();
+      }
+      System.out.println("✅");
+    }
+
+    batch.commit();
+    return affectedVertexIds;
+  }
+
+  // Returns null if the vertex doesn't exist (for example because the deletes were applied
+  // before), after printing a warning with the ID from the file
+  Vertex findVertexOrSkip(TransactionBatch batch, String rawId, Long vertexId, String filePath) {
+    Iterator<Vertex> vertices = batch.tx.vertices(vertexId);
+    if (!vertices.hasNext()) {
+      System.out.println(String.format("Vertex %s in %s does not exist, skipping",
+          rawId, filePath));
+      return null;
+    }
+    return vertices.next();
   }
 }
@@ -0,0 +1,52 @@
+package com.github.nimobeeren.thesis.janusgraph;
+
+import static org.apache.tinkerpop.gremlin.process.traversal.AnonymousTraversalSource.traversal;
+import org.apache.tinkerpop.gremlin.driver.Client;
+import org.apache.tinkerpop.gremlin.driver.Cluster;
+import org.apache.tinkerpop.gremlin.driver.remote.DriverRemoteConnection;
+import org.apache.tinkerpop.gremlin.driver.ser.GraphBinaryMessageSerializerV1;
+import org.apache.tinkerpop.gremlin.process.traversal.dsl.graph.GraphTraversalSource;
+import org.apache.tinkerpop.gremlin.structure.io.binary.TypeSerializerRegistry;
+import org.janusgraph.graphdb.tinkerpop.JanusGraphIoRegistry;
+
+// Connection to a JanusGraph instance running in Gremlin Server
+public class RemoteGraph implements AutoCloseable {
+  Cluster cluster;
+  Client client;
+  GraphTraversalSource g;
+
+  // Address has the form host:port
+  RemoteGraph(String address, int maxInFlight) {
+    String[] hostAndPort = address.split(":");
+    if (hostAndPort.length != 2) {
+      throw new IllegalArgumentException(
+          String.format("Remote address must have the form host:port, got %s", address));
+    }
+
+    // The JanusGraph registry is needed to (de)serialize edge IDs
+    TypeSerializerRegistry registry =
+        TypeSerializerRegistry.build().addRegistry(JanusGraphIoRegistry.instance()).create();
+    this.cluster = Cluster.build(hostAndPort[0]).port(Integer.parseInt(hostAndPort[1]))
+        .serializer(new GraphBinaryMessageSerializerV1(registry))
+        // The minimum pool size must not exceed the maximum, which is below the default minimum
+        // of 2 when only one request may be in flight
+        .minConnectionPoolSize(Math.min(2, maxInFlight)).maxConnectionPoolSize(maxInFlight)
+        .maxInProcessPerConnection(maxInFlight)
+        .maxContentLength(64 * 1024 * 1024).create();
+    this.client = cluster.connect();
+    this.g = traversal().withRemote(DriverRemoteConnection.using(cluster, "g"));
+  }
+
+  // Runs a Groovy script on the server, for things that can't be done with a traversal (like
+  // changing the schema)
+  void submitScript(String script) throws Exception {
+    client.submit(script).all().get();
+  }
+
+  @Override
+  public void close() throws Exception {
+    g.close();
+    client.close();
+    cluster.close();
+  }
+}
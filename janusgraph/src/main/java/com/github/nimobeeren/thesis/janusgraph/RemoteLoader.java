@@ -0,0 +1,355 @@
+package com.github.nimobeeren.thesis.janusgraph;
+
+import static org.apache.tinkerpop.gremlin.process.traversal.dsl.graph.__.select;
+import java.io.File;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import org.apache.commons.csv.CSVRecord;
+import org.apache.tinkerpop.gremlin.process.traversal.P;
+import org.apache.tinkerpop.gremlin.process.traversal.Traversal;
+import org.apache.tinkerpop.gremlin.process.traversal.dsl.graph.GraphTraversal;
+import org.apache.tinkerpop.gremlin.process.traversal.dsl.graph.GraphTraversalSource;
+import org.apache.tinkerpop.gremlin.structure.Column;
+import org.apache.tinkerpop.gremlin.structure.T;
+import org.apache.tinkerpop.gremlin.structure.Vertex;
+import org.apache.tinkerpop.gremlin.structure.VertexProperty;
+import org.janusgraph.core.JanusGraph;
+import org.janusgraph.core.JanusGraphTransaction;
+import org.janusgraph.core.PropertyKey;
+import org.janusgraph.core.VertexLabel;
+
+// Loads SNB into a remote graph. Every request inserts a whole batch of rows, and several requests
+// are in flight at once. Without a session, the server commits every request separately.
+public class RemoteLoader {
+  RemoteGraph remote;
+  GraphTraversalSource g;
+  int batchSize;
+  Semaphore inFlight;
+  int maxInFlight;
+  // First error of any request, rethrown on the loading thread
+  AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+  // Where the dictionaries of the model are kept between loads, or null to not keep them
+  File dictionaryFile;
+
+  RemoteLoader(RemoteGraph remote, int batchSize, int maxInFlight) {
+    this.remote = remote;
+    this.g = remote.g;
+    this.batchSize = batchSize;
+    this.maxInFlight = maxInFlight;
+    this.inFlight = new Semaphore(maxInFlight);
+  }
+
+  void loadSNB(File dataDir) throws Exception {
+    // The schema is created in memory first, which is also used for parsing the data
+    JanusGraph schemaGraph = SchemaScript.openSchemaGraph();
+    SNBModel model = new SNBModel(schemaGraph);
+    model.loadSchema();
+    System.out.println("Creating schema...");
+    remote.submitScript(SchemaScript.from(schemaGraph));
+    JanusGraphTransaction schemaTx = schemaGraph.newTransaction();
+    model.dictionaryFile = dictionaryFile;
+    model.loadDictionaries();
+
+    try {
+      loadSNB(new DataSource(dataDir), model, schemaTx);
+    } finally {
+      // Part of a failed load may be committed already, and needs the codes to be read
+      model.saveDictionaries();
+      schemaTx.rollback();
+      schemaGraph.close();
+    }
+  }
+
+  void loadSNB(DataSource source, SNBModel model, JanusGraphTransaction schemaTx)
+      throws Exception {
+    // Same lookups as SNBModel.loadData()
+    Map<String, String> vertexByFilePath = new HashMap<String, String>();
+    for (Map.Entry<String, String> entry : model.filePathByVertex.entrySet()) {
+      vertexByFilePath.put(entry.getValue(), entry.getKey());
+    }
+    Map<String, String> edgeByFilePath = new HashMap<String, String>();
+    for (Map.Entry<String, String[]> entry : model.filePathsByEdge.entrySet()) {
+      for (String filePath : entry.getValue()) {
+        edgeByFilePath.put(filePath, entry.getKey());
+      }
+    }
+    Map<String, String> propertyByFilePath = new HashMap<String, String>();
+    for (Map.Entry<String, String> entry : model.filePathByProperty.entrySet()) {
+      propertyByFilePath.put(entry.getValue(), entry.getKey());
+    }
+    Set<String> filePaths = new HashSet<String>();
+    filePaths.addAll(vertexByFilePath.keySet());
+    filePaths.addAll(edgeByFilePath.keySet());
+    filePaths.addAll(propertyByFilePath.keySet());
+    source.checkExists(filePaths);
+
+    // Read all files in a single pass, like SNBModel.loadData(). Vertices are sent right away, the
+    // other files are kept until all vertices exist.
+    List<SNBModel.DeferredFile> deferredProperties = new ArrayList<SNBModel.DeferredFile>();
+    List<SNBModel.DeferredFile> deferredEdges = new ArrayList<SNBModel.DeferredFile>();
+    try {
+      source.forEachFile(filePaths, (filePath, reader) -> {
+        if (vertexByFilePath.containsKey(filePath)) {
+          String genericVertexName = vertexByFilePath.get(filePath);
+          System.out.print(String.format("%s ... ", genericVertexName));
+          submitVertexFile(model, schemaTx, genericVertexName, reader);
+        } else if (propertyByFilePath.containsKey(filePath)) {
+          System.out.print(String.format("Reading %s ... ", filePath));
+          deferredProperties
+              .add(model.deferPropertyFile(filePath, propertyByFilePath.get(filePath), reader));
+        } else {
+          System.out.print(String.format("Reading %s ... ", filePath));
+          String edgeLabelName = edgeByFilePath.get(filePath);
+          boolean hasProperty =
+              schemaTx.getEdgeLabel(edgeLabelName).mappedProperties().iterator().hasNext();
+          deferredEdges.add(model.deferEdgeFile(filePath, edgeLabelName, hasProperty, reader));
+        }
+        System.out.println("✅");
+      });
+      // Properties and edges can only be added once all vertices exist
+      awaitAll();
+
+      // Set multi-valued properties because they are in separate files
+      for (SNBModel.DeferredFile file : deferredProperties) {
+        System.out.print(String.format("Person.%s ... ", file.name));
+        PropertyKey propKey = schemaTx.getPropertyKey(file.name);
+        List<Object[]> batch = new ArrayList<Object[]>();
+        file.rows.forEachSorted(row -> {
+          batch.add(new Object[] {row.sourceKey, model.parsePropertyValue(propKey, row.value)});
+          if (batch.size() >= batchSize) {
+            submitProperties(file.name, new ArrayList<Object[]>(batch));
+            batch.clear();
+          }
+        });
+        submitProperties(file.name, batch);
+        System.out.println("✅");
+      }
+
+      // Create edges
+      for (SNBModel.DeferredFile file : deferredEdges) {
+        System.out.print(String.format("%s (%s) ... ", file.name, file.path));
+        // HACK: assume edge has at most one property, and it is always in column 2
+        Iterator<PropertyKey> propIt =
+            schemaTx.getEdgeLabel(file.name).mappedProperties().iterator();
+        PropertyKey propKey = propIt.hasNext() ? propIt.next() : null;
+
+        List<Object[]> batch = new ArrayList<Object[]>();
+        file.rows.forEachSorted(row -> {
+          Object value = propKey == null ? null : model.parsePropertyValue(propKey, row.value);
+          batch.add(new Object[] {row.sourceKey, row.targetKey, value});
+          if (batch.size() >= batchSize) {
+            submitEdges(file.name, file.sourceLabel, file.targetLabel, propKey,
+                new ArrayList<Object[]>(batch));
+            batch.clear();
+          }
+        });
+        submitEdges(file.name, file.sourceLabel, file.targetLabel, propKey, batch);
+        System.out.println("✅");
+      }
+      awaitAll();
+    } finally {
+      // Removes the temporary files
+      for (SNBModel.DeferredFile file : deferredProperties) {
+        file.rows.close();
+      }
+      for (SNBModel.DeferredFile file : deferredEdges) {
+        file.rows.close();
+      }
+    }
+  }
+
+  // Sends the vertices of a file, batched per label because the label is part of the traversal
+  void submitVertexFile(SNBModel model, JanusGraphTransaction schemaTx, String genericVertexName,
+      Reader reader) throws Exception {
+    Map<String, List<Map<String, Object>>> batchByLabel =
+        new HashMap<String, List<Map<String, Object>>>();
+
+    int numRecordsLoaded = 0;
+    for (CSVRecord record : model.vertexCSVFormat.parse(reader)) {
+      VertexLabel vertexLabel = model.getVertexLabel(schemaTx, genericVertexName, record);
+      Map<String, Object> props = new LinkedHashMap<String, Object>();
+      for (PropertyKey propKey : vertexLabel.mappedProperties()) {
+        // Skip the multi-valued properties, we will add them later
+        if (!(propKey.name().equals("speaks") || propKey.name().equals("email"))) {
+          Object value = model.parsePropertyValue(propKey, record.get(propKey.name()));
+          if (value != null) {
+            props.put(propKey.name(), value);
+          }
+        }
+      }
+
+      List<Map<String, Object>> batch = batchByLabel.get(vertexLabel.name());
+      if (batch == null) {
+        batch = new ArrayList<Map<String, Object>>();
+        batchByLabel.put(vertexLabel.name(), batch);
+      }
+      batch.add(props);
+      if (batch.size() >= batchSize) {
+        submitVertices(vertexLabel.name(), batch);
+        batchByLabel.put(vertexLabel.name(), new ArrayList<Map<String, Object>>());
+      }
+
+      if (++numRecordsLoaded >= model.MAX_RECORDS_PER_FILE) {
+        break;
+      }
+    }
+    for (Map.Entry<String, List<Map<String, Object>>> entry : batchByLabel.entrySet()) {
+      submitVertices(entry.getKey(), entry.getValue());
+    }
+  }
+
+  // Creates all vertices in a single request, by injecting the property maps into the traversal
+  void submitVertices(String label, List<Map<String, Object>> batch) throws Exception {
+    if (batch.isEmpty()) {
+      return;
+    }
+    submit(() -> g.inject(batch).unfold().as("row").addV(label).as("v")
+        .sideEffect(select("row").unfold().as("kv").select("v")
+            .property(select("kv").by(Column.keys), select("kv").by(Column.values)))
+        .promise(Traversal::iterate));
+  }
+
+  // Each row is {Person id, value}
+  void submitProperties(String propName, List<Object[]> batch) throws Exception {
+    if (batch.isEmpty()) {
+      return;
+    }
+    Set<Object> ids = new HashSet<Object>();
+    for (Object[] row : batch) {
+      ids.add(row[0]);
+    }
+    submit(() -> resolveIds("Person", ids).thenCompose(vertexIdByKey -> {
+      List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>();
+      for (Object[] row : batch) {
+        Map<String, Object> props = new HashMap<String, Object>();
+        props.put("vertex", lookup(vertexIdByKey, "Person", row[0]));
+        props.put("value", row[1]);
+        rows.add(props);
+      }
+      // The vertices of the batch are read once into a map by vertex ID, see vertexOf()
+      return g.withSideEffect("rows", rows).V(new HashSet<Object>(vertexIdByKey.values()).toArray())
+          .group().by(T.id).as("vertexById").select("rows").unfold().as("row")
+          .map(vertexOf("vertex"))
+          .property(VertexProperty.Cardinality.set, propName, select("row").select("value"))
+          .promise(Traversal::iterate);
+    }));
+  }
+
+  // Each row is {source id, target id, property value or null}
+  void submitEdges(String edgeLabelName, String sourceLabel, String targetLabel,
+      PropertyKey propKey, List<Object[]> batch) throws Exception {
+    if (batch.isEmpty()) {
+      return;
+    }
+    Set<Object> sourceIds = new HashSet<Object>();
+    Set<Object> targetIds = new HashSet<Object>();
+    for (Object[] row : batch) {
+      sourceIds.add(row[0]);
+      targetIds.add(row[1]);
+    }
+    submit(() -> resolveIds(sourceLabel, sourceIds)
+        .thenCombine(resolveIds(targetLabel, targetIds), (sourceIdByKey, targetIdByKey) -> {
+          List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>();
+          for (Object[] row : batch) {
+            Map<String, Object> props = new HashMap<String, Object>();
+            props.put("source", lookup(sourceIdByKey, sourceLabel, row[0]));
+            props.put("target", lookup(targetIdByKey, targetLabel, row[1]));
+            if (row[2] != null) {
+              props.put("value", row[2]);
+            }
+            rows.add(props);
+          }
+          // The endpoints of the batch are read once into a map by vertex ID, see vertexOf()
+          Set<Object> vertexIds = new HashSet<Object>(sourceIdByKey.values());
+          vertexIds.addAll(targetIdByKey.values());
+          GraphTraversal<?, ?> traversal = g.withSideEffect("rows", rows).V(vertexIds.toArray())
+              .group().by(T.id).as("vertexById").select("rows").unfold().as("row")
+              .addE(edgeLabelName).from(vertexOf("source")).to(vertexOf("target"));
+          if (propKey != null) {
+            // All rows of a file have the property, a row without one would fail the select
+            traversal = traversal.property(propKey.name(), select("row").select("value"));
+          }
+          return traversal;
+        }).thenCompose(traversal -> traversal.promise(Traversal::iterate)));
+  }
+
+  // The vertex whose ID is in the given column of the current row, taken from the map that was
+  // built at the start of the traversal. Grouping puts every vertex in a list of its own.
+  static GraphTraversal<Object, Vertex> vertexOf(String column) {
+    return select("vertexById").select(select("row").select(column)).<Vertex>unfold();
+  }
+
+  // Looks up the vertex IDs of many SNB IDs in a single request, through the byId index
+  CompletableFuture<Map<Object, Object>> resolveIds(String genericLabel, Set<Object> ids) {
+    GraphTraversal<Vertex, Vertex> traversal;
+    if (genericLabel.equals("Organisation")) {
+      traversal = g.V().hasLabel(P.within("Company", "University"));
+    } else if (genericLabel.equals("Place")) {
+      traversal = g.V().hasLabel(P.within("City", "Country", "Continent"));
+    } else {
+      traversal = g.V().hasLabel(genericLabel);
+    }
+    return traversal.has("id", P.within(ids)).project("key", "vertex").by("id").by(T.id)
+        .promise(t -> {
+          Map<Object, Object> vertexIdByKey = new HashMap<Object, Object>();
+          while (t.hasNext()) {
+            Map<String, Object> result = t.next();
+            vertexIdByKey.put(result.get("key"), result.get("vertex"));
+          }
+          return vertexIdByKey;
+        });
+  }
+
+  static Object lookup(Map<Object, Object> vertexIdByKey, String genericLabel, Object id) {
+    Object vertexId = vertexIdByKey.get(id);
+    if (vertexId == null) {
+      throw new NoSuchElementException(
+          String.format("Could not find %s with id %s", genericLabel, id));
+    }
+    return vertexId;
+  }
+
+  // Sends a request once fewer than maxInFlight requests are running
+  void submit(Supplier<CompletableFuture<?>> request) throws Exception {
+    checkError();
+    inFlight.acquire();
+    CompletableFuture<?> future;
+    try {
+      future = request.get();
+    } catch (RuntimeException e) {
+      inFlight.release();
+      throw e;
+    }
+    future.whenComplete((result, e) -> {
+      if (e != null) {
+        error.compareAndSet(null, e);
+      }
+      inFlight.release();
+    });
+  }
+
+  void awaitAll() throws Exception {
+    inFlight.acquire(maxInFlight);
+    inFlight.release(maxInFlight);
+    checkError();
+  }
+
+  void checkError() throws Exception {
+    Throwable e = error.get();
+    if (e != null) {
+      throw new Exception("Remote request failed", e);
+    }
+  }
+}
@@ -5,15 +5,16 @@ import static org.apache.tinkerpop.gremlin.process.traversal.dsl.graph.__.hasNot
 import static org.apache.tinkerpop.gremlin.process.traversal.dsl.graph.__.inE;
 import static org.apache.tinkerpop.gremlin.process.traversal.dsl.graph.__.outE;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileReader;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Arrays;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
@@ -23,8 +24,10 @@ import org.apache.tinkerpop.gremlin.process.traversal.P;
 import org.apache.tinkerpop.gremlin.process.traversal.Traversal;
 import org.apache.tinkerpop.gremlin.process.traversal.dsl.graph.GraphTraversal;
 import org.apache.tinkerpop.gremlin.process.traversal.dsl.graph.GraphTraversalSource;
+import org.apache.tinkerpop.gremlin.structure.Direction;
 import org.apache.tinkerpop.gremlin.structure.Edge;
 import org.apache.tinkerpop.gremlin.structure.Vertex;
+import org.apache.tinkerpop.gremlin.structure.VertexProperty;
 import org.janusgraph.core.Cardinality;
 import org.janusgraph.core.EdgeLabel;
 import org.janusgraph.core.JanusGraph;
@@ -34,6 +37,9 @@ import org.janusgraph.core.Multiplicity;
 import org.janusgraph.core.PropertyKey;
 import org.janusgraph.core.VertexLabel;
 import org.janusgraph.core.schema.JanusGraphManagement;
+import org.janusgraph.diskstorage.util.BufferUtil;
+import org.janusgraph.graphdb.database.StandardJanusGraph;
+import org.janusgraph.graphdb.idmanagement.IDManager;
 
 public class SNBModel extends DataModel {
 
@@ -43,30 +49,131 @@ public class SNBModel extends DataModel {
   Map<String, String[]> filePathsByEdge = new HashMap<String, String[]>();
   // Multi-valued properties are stored in separate files
   Map<String, String> filePathByProperty = new HashMap<String, String>();
-  SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
-  SimpleDateFormat dateTimeFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+  CSVFormat vertexCSVFormat = CSVFormat.Builder.create().setHeader().setSkipHeaderRecord(true)
+      .setDelimiter('|').setNullString("").build();
+  CSVFormat edgeCSVFormat = CSVFormat.Builder.create().setSkipHeaderRecord(false)
+      .setDelimiter('|').setNullString("").build();
 
   // Limit amount of data to read during development
   long MAX_RECORDS_PER_FILE = Long.MAX_VALUE;
   long COMMIT_EVERY_N_RECORDS = 10000;
+  // Edges of a file that are sorted in memory, more are spilled to disk
+  int MAX_EDGES_IN_MEMORY = 1000000;
+  // Edges to targets with at least this many incoming edges in a file are written per target
+  int HIGH_DEGREE_IN_EDGES = 1000;
+  // Where sorted edges are spilled to, or null for the default temporary directory
+  File sortDirectory;
+  IDManager idManager;
 
   SNBModel(JanusGraph graph) {
     super(graph);
+    if (graph != null) {
+      // Not available when validating a remote graph, which doesn't need it
+      this.idManager = ((StandardJanusGraph) graph).getIDManager();
+      // Next to the storage directory, so the spilled edges go to the same disk as the graph
+      this.sortDirectory = nextToStorage(graph, "-sort");
+    }
+
+    // Low-cardinality strings, speaks has the same values as language
+    encoder.addDictionary("gender", "gender");
+    encoder.addDictionary("browserUsed", "browserUsed");
+    encoder.addDictionary("language", "language", "speaks");
+
+    // Set file paths for all nodes
+    filePathByVertex.put("Comment", "dynamic/comment_0_0.csv");
+    filePathByVertex.put("Post", "dynamic/post_0_0.csv");
+    filePathByVertex.put("Organisation", "static/organisation_0_0.csv");
+    filePathByVertex.put("Place", "static/place_0_0.csv");
+    filePathByVertex.put("Forum", "dynamic/forum_0_0.csv");
+    filePathByVertex.put("Person", "dynamic/person_0_0.csv");
+    filePathByVertex.put("Tag", "static/tag_0_0.csv");
+    filePathByVertex.put("TagClass", "static/tagclass_0_0.csv");
+
+    // Set file paths for all edges
+    filePathsByEdge.put("CONTAINER_OF", new String[] {"dynamic/forum_containerOf_post_0_0.csv"});
+    filePathsByEdge.put("HAS_CREATOR", new String[] {"dynamic/comment_hasCreator_person_0_0.csv",
+        "dynamic/post_hasCreator_person_0_0.csv"});
+    filePathsByEdge.put("HAS_INTEREST", new String[] {"dynamic/person_hasInterest_tag_0_0.csv"});
+    filePathsByEdge.put("HAS_MEMBER", new String[] {"dynamic/forum_hasMember_person_0_0.csv"});
+    filePathsByEdge.put("HAS_MODERATOR",
+        new String[] {"dynamic/forum_hasModerator_person_0_0.csv"});
+    filePathsByEdge.put("HAS_TAG", new String[] {"dynamic/comment_hasTag_tag_0_0.csv",
+        "dynamic/forum_hasTag_tag_0_0.csv", "dynamic/post_hasTag_tag_0_0.csv"});
+    filePathsByEdge.put("HAS_TYPE", new String[] {"static/tag_hasType_tagclass_0_0.csv"});
+    filePathsByEdge.put("IS_LOCATED_IN",
+        new String[] {"static/organisation_isLocatedIn_place_0_0.csv",
+            "dynamic/comment_isLocatedIn_place_0_0.csv", "dynamic/person_isLocatedIn_place_0_0.csv",
+            "dynamic/post_isLocatedIn_place_0_0.csv"});
+    filePathsByEdge.put("IS_PART_OF", new String[] {"static/place_isPartOf_place_0_0.csv"});
+    filePathsByEdge.put("IS_SUBCLASS_OF",
+        new String[] {"static/tagclass_isSubclassOf_tagclass_0_0.csv"});
+    filePathsByEdge.put("KNOWS", new String[] {"dynamic/person_knows_person_0_0.csv"});
+    filePathsByEdge.put("LIKES",
+        new String[] {"dynamic/person_likes_comment_0_0.csv", "dynamic/person_likes_post_0_0.csv"});
+    filePathsByEdge.put("REPLY_OF", new String[] {"dynamic/comment_replyOf_comment_0_0.csv",
+        "dynamic/comment_replyOf_post_0_0.csv"});
+    filePathsByEdge.put("STUDY_AT", new String[] {"dynamic/person_studyAt_organisation_0_0.csv"});
+    filePathsByEdge.put("WORK_AT", new String[] {"dynamic/person_workAt_organisation_0_0.csv"});
+
+    // Set file paths for all multi-valued properties
+    filePathByProperty.put("speaks", "dynamic/person_speaks_language_0_0.csv");
+    filePathByProperty.put("email", "dynamic/person_email_emailaddress_0_0.csv");
   }
 
-  Object parsePropertyValue(PropertyKey propKey, String rawValue) throws ParseException {
-    if (rawValue == null) {
-      return rawValue;
+  Object parsePropertyValue(PropertyKey propKey, String rawValue) {
+    return encoder.encode(propKey, rawValue);
+  }
+
+  VertexLabel getVertexLabel(JanusGraphTransaction tx, String genericVertexName,
+      CSVRecord record) {
+    if (genericVertexName.equals("Organisation") || genericVertexName.equals("Place")) {
+      return tx.getVertexLabel(Util.capitalize(record.get("type")));
     }
+    return tx.getVertexLabel(genericVertexName);
+  }
 
-    if (propKey.dataType() == Date.class) {
-      if (propKey.name().equals("birthday")) {
-        return dateFormat.parse(rawValue);
-      }
-      return dateTimeFormat.parse(rawValue);
+  // Position of a vertex in the storage backend, in the same order as the rows
+  long storageKey(Vertex vertex) {
+    return idManager.getKey((Long) vertex.id()).getLong(0);
+  }
+
+  long vertexId(long storageKey) {
+    return idManager.getKeyID(BufferUtil.getLongBuffer(storageKey));
+  }
+
+  // Finds a vertex through the byId index, where the label may be a generic label from the data
+  // files (Organisation or Place)
+  Vertex findVertex(GraphTraversalSource g, String genericLabel, String id) {
+    GraphTraversal<Vertex, Vertex> traversal = lookupVertex(g, genericLabel, id);
+    if (!traversal.hasNext()) {
+      throw new NoSuchElementException(
+          String.format("Could not find %s with id %s", genericLabel, id));
+    }
+    return traversal.next();
+  }
+
+  // Returns null if the vertex doesn't exist (for example because the deletes were applied
+  // before), after printing a warning with the ID from the file
+  Vertex findVertexOrSkip(GraphTraversalSource g, String genericLabel, String id, File file) {
+    GraphTraversal<Vertex, Vertex> traversal = lookupVertex(g, genericLabel, id);
+    if (!traversal.hasNext()) {
+      System.out.println(String.format("%s %s in %s/%s does not exist, skipping", genericLabel,
+          id, file.getParentFile().getName(), file.getName()));
+      return null;
     }
+    return traversal.next();
+  }
 
-    return rawValue;
+  GraphTraversal<Vertex, Vertex> lookupVertex(GraphTraversalSource g, String genericLabel,
+      String id) {
+    // Same type as the id key, so the index lookup doesn't have to convert it
+    Long longId = Long.parseLong(id);
+    if (genericLabel.equals("Organisation")) {
+      return g.V().hasLabel(P.within("Company", "University")).has("id", longId);
+    } else if (genericLabel.equals("Place")) {
+      return g.V().hasLabel(P.within("City", "Country", "Continent")).has("id", longId);
+    }
+    return g.V().hasLabel(genericLabel).has("id", longId);
   }
 
   public void loadSchema() {
@@ -89,21 +196,25 @@ public class SNBModel extends DataModel {
     PropertyKey idKey = mgmt.makePropertyKey("id").dataType(Long.class).make();
     PropertyKey creationDateKey = mgmt.makePropertyKey("creationDate").dataType(Date.class).make();
     PropertyKey locationIPKey = mgmt.makePropertyKey("locationIP").dataType(String.class).make();
-    PropertyKey browserUsedKey = mgmt.makePropertyKey("browserUsed").dataType(String.class).make();
+    // Dictionary-encoded, see ValueEncoder
+    PropertyKey browserUsedKey =
+        mgmt.makePropertyKey("browserUsed").dataType(ValueEncoder.CODE_TYPE).make();
     PropertyKey contentKey = mgmt.makePropertyKey("content").dataType(String.class).make();
     PropertyKey lengthKey = mgmt.makePropertyKey("length").dataType(Integer.class).make();
     PropertyKey imageFileKey = mgmt.makePropertyKey("imageFile").dataType(String.class).make();
-    PropertyKey languageKey = mgmt.makePropertyKey("language").dataType(String.class).make();
+    PropertyKey languageKey =
+        mgmt.makePropertyKey("language").dataType(ValueEncoder.CODE_TYPE).make();
     PropertyKey nameKey = mgmt.makePropertyKey("name").dataType(String.class).make();
     PropertyKey urlKey = mgmt.makePropertyKey("url").dataType(String.class).make();
     PropertyKey titleKey = mgmt.makePropertyKey("title").dataType(String.class).make();
     PropertyKey firstNameKey = mgmt.makePropertyKey("firstName").dataType(String.class).make();
     PropertyKey lastNameKey = mgmt.makePropertyKey("lastName").dataType(String.class).make();
-    PropertyKey genderKey = mgmt.makePropertyKey("gender").dataType(String.class).make();
+    PropertyKey genderKey =
+        mgmt.makePropertyKey("gender").dataType(ValueEncoder.CODE_TYPE).make();
     PropertyKey birthdayKey = mgmt.makePropertyKey("birthday").dataType(Date.class).make();
     // Not modeled: set must have size >= 1
-    PropertyKey speaksKey =
-        mgmt.makePropertyKey("speaks").dataType(String.class).cardinality(Cardinality.SET).make();
+    PropertyKey speaksKey = mgmt.makePropertyKey("speaks").dataType(ValueEncoder.CODE_TYPE)
+        .cardinality(Cardinality.SET).make();
     // Not modeled: set must have size >= 1
     PropertyKey emailKey =
         mgmt.makePropertyKey("email").dataType(String.class).cardinality(Cardinality.SET).make();
@@ -191,304 +302,614 @@ public class SNBModel extends DataModel {
     mgmt.addProperties(STUDY_AT, classYearKey);
     mgmt.addProperties(WORK_AT, workFromKey);
 
-    // Set file paths for all nodes
-    filePathByVertex.put("Comment", "dynamic/comment_0_0.csv");
-    filePathByVertex.put("Post", "dynamic/post_0_0.csv");
-    filePathByVertex.put("Organisation", "static/organisation_0_0.csv");
-    filePathByVertex.put("Place", "static/place_0_0.csv");
-    filePathByVertex.put("Forum", "dynamic/forum_0_0.csv");
-    filePathByVertex.put("Person", "dynamic/person_0_0.csv");
-    filePathByVertex.put("Tag", "static/tag_0_0.csv");
-    filePathByVertex.put("TagClass", "static/tagclass_0_0.csv");
-
-    // Set file paths for all edges
-    filePathsByEdge.put("CONTAINER_OF", new String[] {"dynamic/forum_containerOf_post_0_0.csv"});
-    filePathsByEdge.put("HAS_CREATOR", new String[] {"dynamic/comment_hasCreator_person_0_0.csv",
-        "dynamic/post_hasCreator_person_0_0.csv"});
-    filePathsByEdge.put("HAS_INTEREST", new String[] {"dynamic/person_hasInterest_tag_0_0.csv"});
-    filePathsByEdge.put("HAS_MEMBER", new String[] {"dynamic/forum_hasMember_person_0_0.csv"});
-    filePathsByEdge.put("HAS_MODERATOR",
-        new String[] {"dynamic/forum_hasModerator_person_0_0.csv"});
-    filePathsByEdge.put("HAS_TAG", new String[] {"dynamic/comment_hasTag_tag_0_0.csv",
-        "dynamic/forum_hasTag_tag_0_0.csv", "dynamic/post_hasTag_tag_0_0.csv"});
-    filePathsByEdge.put("HAS_TYPE", new String[] {"static/tag_hasType_tagclass_0_0.csv"});
-    filePathsByEdge.put("IS_LOCATED_IN",
-        new String[] {"static/organisation_isLocatedIn_place_0_0.csv",
-            "dynamic/comment_isLocatedIn_place_0_0.csv", "dynamic/person_isLocatedIn_place_0_0.csv",
-            "dynamic/post_isLocatedIn_place_0_0.csv"});
-    filePathsByEdge.put("IS_PART_OF", new String[] {"static/place_isPartOf_place_0_0.csv"});
-    filePathsByEdge.put("IS_SUBCLASS_OF",
-        new String[] {"static/tagclass_isSubclassOf_tagclass_0_0.csv"});
-    filePathsByEdge.put("KNOWS", new String[] {"dynamic/person_knows_person_0_0.csv"});
-    filePathsByEdge.put("LIKES",
-        new String[] {"dynamic/person_likes_comment_0_0.csv", "dynamic/person_likes_post_0_0.csv"});
-    filePathsByEdge.put("REPLY_OF", new String[] {"dynamic/comment_replyOf_comment_0_0.csv",
-        "dynamic/comment_replyOf_post_0_0.csv"});
-    filePathsByEdge.put("STUDY_AT", new String[] {"dynamic/person_studyAt_organisation_0_0.csv"});
-    filePathsByEdge.put("WORK_AT", new String[] {"dynamic/person_workAt_organisation_0_0.csv"});
-
-    // Set file paths for all multi-valued properties
-    filePathByProperty.put("speaks", "dynamic/person_speaks_language_0_0.csv");
-    filePathByProperty.put("email", "dynamic/person_email_emailaddress_0_0.csv");
-
     mgmt.commit();
   }
 
-  GraphTraversal<Vertex, Vertex> findViolatingVertices() {
-    GraphTraversalSource g = graph.traversal();
+  Map<String, Traversal<?, ?>> vertexRules() {
+    Map<String, Traversal<?, ?>> rules = new LinkedHashMap<String, Traversal<?, ?>>();
 
-    return g.V().or(
-        // Check for missing mandatory properties on vertices
-        // All vertices have an id property
-        hasNot("id"),
-        // Forum
-        hasLabel("Forum").or(hasNot("title"), hasNot("creationDate")),
-        // Message
+    // Check for missing mandatory properties on vertices
+    // All vertices have an id property
+    rules.put("id", hasNot("id"));
+    // Forum
+    rules.put("Forum properties", hasLabel("Forum").or(hasNot("title"), hasNot("creationDate")));
+    // Message
+    rules.put("Message properties",
         hasLabel(P.within("Comment", "Post")).or(hasNot("browserUsed"), hasNot("creationDate"),
-            hasNot("locationIP"), hasNot("length")),
-        // Organization/Place/Tag/TagClass
+            hasNot("locationIP"), hasNot("length")));
+    // Organization/Place/Tag/TagClass
+    rules.put("Organisation/Place/Tag/TagClass properties",
         hasLabel(
             P.within("Company", "University", "City", "Country", "Continent", "Tag", "TagClass"))
-                .or(hasNot("name"), hasNot("url")),
-        // Person
+                .or(hasNot("name"), hasNot("url")));
+    // Person
+    rules.put("Person properties",
         hasLabel("Person").or(hasNot("firstName"), hasNot("lastName"), hasNot("gender"),
             hasNot("birthday"), hasNot("email"), hasNot("speaks"), hasNot("browserUsed"),
-            hasNot("locationIP"), hasNot("creationDate")),
-
-        // Check for missing mandatory edges
-        // ()-[CONTAINER_OF]->Post
-        hasLabel("Post").not(inE("CONTAINER_OF")),
-        // (Message)-[HAS_CREATOR]->()
-        hasLabel(P.within("Post", "Comment")).not(outE("HAS_CREATOR")),
-        // (Person)-[HAS_INTEREST]->()
-        hasLabel("Person").not(outE("HAS_INTEREST")),
-        // (Forum)-[HAS_MEMBER]->()
-        // hasLabel("Forum").not(outE("HAS_MEMBER")) // this constraint seems to be violated in data
-        // (Forum)-[HAS_TAG]->()
-        hasLabel("Forum").not(outE("HAS_TAG")),
-        // (Tag)-[HAS_TYPE]->()
-        hasLabel("Tag").not(outE("HAS_TYPE")),
-        // (Organisation|Message|Person)-[IS_LOCATED_IN]->()
+            hasNot("locationIP"), hasNot("creationDate")));
+
+    // Check for missing mandatory edges
+    rules.put("()-[CONTAINER_OF]->(Post)", hasLabel("Post").not(inE("CONTAINER_OF")));
+    rules.put("(Message)-[HAS_CREATOR]->()",
+        hasLabel(P.within("Post", "Comment")).not(outE("HAS_CREATOR")));
+    rules.put("(Person)-[HAS_INTEREST]->()", hasLabel("Person").not(outE("HAS_INTEREST")));
+    // (Forum)-[HAS_MEMBER]->()
+    // hasLabel("Forum").not(outE("HAS_MEMBER")) // this constraint seems to be violated in data
+    rules.put("(Forum)-[HAS_TAG]->()", hasLabel("Forum").not(outE("HAS_TAG")));
+    rules.put("(Tag)-[HAS_TYPE]->()", hasLabel("Tag").not(outE("HAS_TYPE")));
+    rules.put("(Organisation|Message|Person)-[IS_LOCATED_IN]->()",
         hasLabel(P.within("Company", "University", "Post", "Comment", "Person"))
-            .not(outE("IS_LOCATED_IN")),
-        // (City|Country)-[IS_PART_OF]->()
-        hasLabel(P.within("City", "Country")).not(outE("IS_PART_OF")),
-        // ()-[IS_PART_OF]->(Country|Continent)
+            .not(outE("IS_LOCATED_IN")));
+    rules.put("(City|Country)-[IS_PART_OF]->()",
+        hasLabel(P.within("City", "Country")).not(outE("IS_PART_OF")));
+    rules.put("()-[IS_PART_OF]->(Country|Continent)",
         hasLabel(P.within("Country", "Continent")).not(inE("IS_PART_OF")));
+
+    return rules;
   }
 
-  GraphTraversal<Edge, Edge> findViolatingEdges() {
-    GraphTraversalSource g = graph.traversal();
+  Map<String, Traversal<?, ?>> edgeRules() {
+    Map<String, Traversal<?, ?>> rules = new LinkedHashMap<String, Traversal<?, ?>>();
 
     // Check for missing mandatory properties on edges
-    return g.E().or(
-        // HAS_MEMBER/KNOWS/LIKES
-        hasLabel(P.within("HAS_MEMBER", "KNOWS", "LIKES")).hasNot("creationDate"),
-        // STUDY_AT
-        hasLabel("STUDY_AT").hasNot("classYear"),
-        // WORK_AT
-        hasLabel("WORK_AT").hasNot("workFrom"));
+    rules.put("HAS_MEMBER/KNOWS/LIKES properties",
+        hasLabel(P.within("HAS_MEMBER", "KNOWS", "LIKES")).hasNot("creationDate"));
+    rules.put("STUDY_AT properties", hasLabel("STUDY_AT").hasNot("classYear"));
+    rules.put("WORK_AT properties", hasLabel("WORK_AT").hasNot("workFrom"));
+
+    return rules;
   }
 
-  public void loadData(File dataDir) throws Exception {
-    // Ensure all data files exist
-    Set<String> filePaths = new HashSet<String>();
-    filePaths.addAll(filePathByVertex.values());
-    for (String[] paths : filePathsByEdge.values()) {
-      filePaths.addAll(Arrays.asList(paths));
+  GraphTraversal<Vertex, Edge> ruleEdges(GraphTraversal<Vertex, Vertex> vertices) {
+    // HAS_MEMBER starts at a Forum, all others at a Person
+    return vertices.hasLabel(P.within("Forum", "Person"))
+        .outE("HAS_MEMBER", "KNOWS", "LIKES", "STUDY_AT", "WORK_AT");
+  }
+
+  // Same rules as vertexRules() and edgeRules(), for use with ColumnarValidator
+  static List<ColumnarRule> columnarRules() {
+    List<ColumnarRule> rules = new ArrayList<ColumnarRule>();
+    String[] messages = {"Comment", "Post"};
+
+    rules.add(ColumnarRule.vertexProperties("id", null, "id"));
+    rules.add(ColumnarRule.vertexProperties("Forum properties", new String[] {"Forum"}, "title",
+        "creationDate"));
+    rules.add(ColumnarRule.vertexProperties("Message properties", messages, "browserUsed",
+        "creationDate", "locationIP", "length"));
+    rules.add(ColumnarRule.vertexProperties("Organisation/Place/Tag/TagClass properties",
+        new String[] {"Company", "University", "City", "Country", "Continent", "Tag", "TagClass"},
+        "name", "url"));
+    rules.add(ColumnarRule.vertexProperties("Person properties", new String[] {"Person"},
+        "firstName", "lastName", "gender", "birthday", "email", "speaks", "browserUsed",
+        "locationIP", "creationDate"));
+
+    rules.add(ColumnarRule.vertexEdge("()-[CONTAINER_OF]->(Post)", new String[] {"Post"},
+        Direction.IN, "CONTAINER_OF"));
+    rules.add(ColumnarRule.vertexEdge("(Message)-[HAS_CREATOR]->()", messages, Direction.OUT,
+        "HAS_CREATOR"));
+    rules.add(ColumnarRule.vertexEdge("(Person)-[HAS_INTEREST]->()", new String[] {"Person"},
+        Direction.OUT, "HAS_INTEREST"));
+    rules.add(ColumnarRule.vertexEdge("(Forum)-[HAS_TAG]->()", new String[] {"Forum"},
+        Direction.OUT, "HAS_TAG"));
+    rules.add(ColumnarRule.vertexEdge("(Tag)-[HAS_TYPE]->()", new String[] {"Tag"}, Direction.OUT,
+        "HAS_TYPE"));
+    rules.add(ColumnarRule.vertexEdge("(Organisation|Message|Person)-[IS_LOCATED_IN]->()",
+        new String[] {"Company", "University", "Post", "Comment", "Person"}, Direction.OUT,
+        "IS_LOCATED_IN"));
+    rules.add(ColumnarRule.vertexEdge("(City|Country)-[IS_PART_OF]->()",
+        new String[] {"City", "Country"}, Direction.OUT, "IS_PART_OF"));
+    rules.add(ColumnarRule.vertexEdge("()-[IS_PART_OF]->(Country|Continent)",
+        new String[] {"Country", "Continent"}, Direction.IN, "IS_PART_OF"));
+
+    rules.add(ColumnarRule.edgeProperties("HAS_MEMBER/KNOWS/LIKES properties",
+        new String[] {"HAS_MEMBER", "KNOWS", "LIKES"}, "creationDate"));
+    rules.add(
+        ColumnarRule.edgeProperties("STUDY_AT properties", new String[] {"STUDY_AT"}, "classYear"));
+    rules.add(
+        ColumnarRule.edgeProperties("WORK_AT properties", new String[] {"WORK_AT"}, "workFrom"));
+
+    return rules;
+  }
+
+  // Rows of an edge file or a multi-valued property file, which can only be added once all vertices
+  // exist. The rows are kept with the SNB ids from the file, sorted by source (or by Person for a
+  // property), so consecutive rows mostly need the same vertex.
+  static class DeferredFile {
+    String path;
+    // Edge label, or property name
+    String name;
+    String sourceLabel;
+    String targetLabel;
+    long numRows = 0;
+    ExternalEdgeSort rows;
+  }
+
+  // Reads the rows of an edge file, the raw property value (if any) is in column 2
+  DeferredFile deferEdgeFile(String filePath, String edgeLabelName, boolean hasProperty,
+      Reader reader) throws IOException {
+    DeferredFile file = new DeferredFile();
+    file.path = filePath;
+    file.name = edgeLabelName;
+    file.rows =
+        new ExternalEdgeSort(ExternalEdgeSort.BY_SOURCE, MAX_EDGES_IN_MEMORY, sortDirectory);
+
+    // Read the header record to get the source and target label
+    Iterator<CSVRecord> recordIt = edgeCSVFormat.parse(reader).iterator();
+    Iterator<String> headerRecordIt = recordIt.next().iterator();
+    file.sourceLabel = headerRecordIt.next().split("\\.")[0];
+    file.targetLabel = headerRecordIt.next().split("\\.")[0];
+
+    while (recordIt.hasNext() && file.numRows < MAX_RECORDS_PER_FILE) {
+      CSVRecord record = recordIt.next();
+      file.rows.add(new ExternalEdgeSort.SortedEdge(Long.parseLong(record.get(0)),
+          Long.parseLong(record.get(1)), hasProperty ? record.get(2) : null));
+      file.numRows++;
     }
-    filePaths.addAll(filePathByProperty.values());
-    for (String filePath : filePaths) {
-      if (!new File(dataDir, filePath).isFile()) {
-        throw new FileNotFoundException(String.format("Missing data file: %s", filePath));
+    // Only the rows of the file that is being read are held in memory
+    file.rows.flush();
+    return file;
+  }
+
+  // Reads the rows of a multi-valued property file, as edges from a Person without a target
+  DeferredFile deferPropertyFile(String filePath, String propName, Reader reader)
+      throws IOException {
+    DeferredFile file = new DeferredFile();
+    file.path = filePath;
+    file.name = propName;
+    file.sourceLabel = "Person";
+    file.rows =
+        new ExternalEdgeSort(ExternalEdgeSort.BY_SOURCE, MAX_EDGES_IN_MEMORY, sortDirectory);
+    String valueColumn = propName.equals("email") ? "email" : "language";
+
+    for (CSVRecord record : vertexCSVFormat.parse(reader)) {
+      file.rows.add(new ExternalEdgeSort.SortedEdge(Long.parseLong(record.get("Person.id")), 0,
+          record.get(valueColumn)));
+      if (++file.numRows >= MAX_RECORDS_PER_FILE) {
+        break;
       }
     }
+    file.rows.flush();
+    return file;
+  }
 
-    JanusGraphTransaction tx = graph.newTransaction();
+  // The data may be a directory or a (compressed) tar archive, see DataSource
+  public void loadData(File dataDir) throws Exception {
+    loadData(new DataSource(dataDir));
+  }
 
-    CSVFormat vertexCSVFormat = CSVFormat.Builder.create().setHeader().setSkipHeaderRecord(true)
-        .setDelimiter('|').setNullString("").build();
-    CSVFormat edgeCSVFormat = CSVFormat.Builder.create().setSkipHeaderRecord(false)
-        .setDelimiter('|').setNullString("").build();
+  void loadData(DataSource source) throws Exception {
+    // Map every file to what it contains, because files are handled by path
+    Map<String, String> vertexByFilePath = new HashMap<String, String>();
+    for (Map.Entry<String, String> entry : filePathByVertex.entrySet()) {
+      vertexByFilePath.put(entry.getValue(), entry.getKey());
+    }
+    Map<String, String> edgeByFilePath = new HashMap<String, String>();
+    for (Map.Entry<String, String[]> entry : filePathsByEdge.entrySet()) {
+      for (String filePath : entry.getValue()) {
+        edgeByFilePath.put(filePath, entry.getKey());
+      }
+    }
+    Map<String, String> propertyByFilePath = new HashMap<String, String>();
+    for (Map.Entry<String, String> entry : filePathByProperty.entrySet()) {
+      propertyByFilePath.put(entry.getValue(), entry.getKey());
+    }
 
-    // Create vertices
-    for (String genericVertexName : filePathByVertex.keySet()) {
-      System.out.print(String.format("%s ... ", genericVertexName));
-
-      Iterable<CSVRecord> records = vertexCSVFormat
-          .parse(new FileReader(new File(dataDir, filePathByVertex.get(genericVertexName))));
-
-      // Iterate over all data records
-      int numRecordsLoaded = 0;
-      for (CSVRecord record : records) {
-        // Get the vertex label, which may be dependent on a value in the record
-        VertexLabel vertexLabel;
-        if (genericVertexName.equals("Organisation") || genericVertexName.equals("Place")) {
-          vertexLabel = tx.getVertexLabel(Util.capitalize(record.get("type")));
+    // Ensure all data files exist
+    Set<String> filePaths = new HashSet<String>();
+    filePaths.addAll(vertexByFilePath.keySet());
+    filePaths.addAll(edgeByFilePath.keySet());
+    filePaths.addAll(propertyByFilePath.keySet());
+    source.checkExists(filePaths);
+
+    TransactionBatch batch = new TransactionBatch(graph, COMMIT_EVERY_N_RECORDS);
+    batch.profiler = profiler;
+    List<DeferredFile> deferredProperties = new ArrayList<DeferredFile>();
+    List<DeferredFile> deferredEdges = new ArrayList<DeferredFile>();
+
+    try {
+      // Read all files in a single pass over the source, in whatever order it has them. Vertices
+      // are created right away, the other files are kept until all vertices exist. The phase also
+      // contains the reading of the other files.
+      profiler.beginPhase("read");
+      source.forEachFile(filePaths, (filePath, reader) -> {
+        profiler.beginFile(filePath);
+        long numRecordsLoaded;
+        if (vertexByFilePath.containsKey(filePath)) {
+          String genericVertexName = vertexByFilePath.get(filePath);
+          System.out.print(String.format("%s ... ", genericVertexName));
+          numRecordsLoaded = loadVertexFile(genericVertexName, reader, batch);
+        } else if (propertyByFilePath.containsKey(filePath)) {
+          System.out.print(String.format("Reading %s ... ", filePath));
+          DeferredFile file =
+              deferPropertyFile(filePath, propertyByFilePath.get(filePath), reader);
+          deferredProperties.add(file);
+          numRecordsLoaded = file.numRows;
         } else {
-          vertexLabel = tx.getVertexLabel(genericVertexName);
+          System.out.print(String.format("Reading %s ... ", filePath));
+          String edgeLabelName = edgeByFilePath.get(filePath);
+          // HACK: assume edge has at most one property, and it is always in column 2
+          boolean hasProperty =
+              batch.tx.getEdgeLabel(edgeLabelName).mappedProperties().iterator().hasNext();
+          DeferredFile file = deferEdgeFile(filePath, edgeLabelName, hasProperty, reader);
+          deferredEdges.add(file);
+          numRecordsLoaded = file.numRows;
         }
+        profiler.endFile(numRecordsLoaded, source.bytesRead());
+        System.out.println("✅");
+      });
+
+      batch.commit();
+      profiler.endPhase();
+      batch.open();
+
+      // Set multi-valued properties because they are in separate files
+      profiler.beginPhase("multi-valued properties");
+      for (DeferredFile file : deferredProperties) {
+        profiler.beginFile(file.path);
+        System.out.print(String.format("Person.%s ... ", file.name));
+        PropertyKey propKey = batch.tx.getPropertyKey(file.name);
+        file.rows.forEachSorted(new ExternalEdgeSort.EdgeHandler() {
+          // A Person is only looked up again when it changes, or when its transaction was committed
+          JanusGraphTransaction tx;
+          long personId;
+          Vertex vertex;
+
+          @Override
+          public void handle(ExternalEdgeSort.SortedEdge row) throws Exception {
+            if (tx != batch.tx || vertex == null || personId != row.sourceKey) {
+              tx = batch.tx;
+              personId = row.sourceKey;
+              // Multi-valued properties only exist on the Person vertices, so we can hardcode this
+              vertex = findVertex(batch.g, "Person", Long.toString(personId));
+            }
+            vertex.property(file.name, parsePropertyValue(propKey, row.value));
+            batch.next();
+          }
+        });
+        profiler.endFile(file.numRows, 0);
+        System.out.println("✅");
+      }
 
-        JanusGraphVertex vertex = tx.addVertex(vertexLabel.name());
+      batch.commit();
+      profiler.endPhase();
+
+      // Create edges. Every file is sorted by the storage key of the source vertex first, so the
+      // edges of a vertex are written together and in the order of the storage, instead of all over
+      // it. Edges to a high-degree target (like a Country or a popular Tag) are sorted by target
+      // instead and written last, so the writes to that vertex are grouped as well.
+      profiler.beginPhase("edges");
+      for (DeferredFile file : deferredEdges) {
+        profiler.beginFile(file.path);
+        System.out.print(String.format("%s (%s) ... ", file.name, file.path));
+        loadEdgeFile(file);
+        profiler.endFile(file.numRows, 0);
+        System.out.println("✅");
+      }
+      profiler.endPhase();
+    } finally {
+      // Removes the temporary files
+      for (DeferredFile file : deferredProperties) {
+        file.rows.close();
+      }
+      for (DeferredFile file : deferredEdges) {
+        file.rows.close();
+      }
+    }
+  }
 
-        // Loop over all properties that the vertex is allowed to have
-        for (PropertyKey propKey : vertexLabel.mappedProperties()) {
-          // Skip the multi-valued properties, we will add them later
-          if (!(propKey.name().equals("speaks") || propKey.name().equals("email"))) {
-            String rawValue = record.get(propKey.name());
-            vertex.property(propKey.name(), parsePropertyValue(propKey, rawValue));
-          }
+  long loadVertexFile(String genericVertexName, Reader reader, TransactionBatch batch)
+      throws Exception {
+    // Iterate over all data records
+    long numRecordsLoaded = 0;
+    for (CSVRecord record : vertexCSVFormat.parse(reader)) {
+      // Get the vertex label, which may be dependent on a value in the record
+      VertexLabel vertexLabel = getVertexLabel(batch.tx, genericVertexName, record);
+
+      JanusGraphVertex vertex = batch.tx.addVertex(vertexLabel.name());
+
+      // Loop over all properties that the vertex is allowed to have
+      for (PropertyKey propKey : vertexLabel.mappedProperties()) {
+        // Skip the multi-valued properties, we will add them later
+        if (!(propKey.name().equals("speaks") || propKey.name().equals("email"))) {
+          String rawValue = record.get(propKey.name());
+          vertex.property(propKey.name(), parsePropertyValue(propKey, rawValue));
         }
+      }
 
-        if (numRecordsLoaded % COMMIT_EVERY_N_RECORDS == 0) {
-          tx.commit();
-          tx.close();
-          tx = graph.newTransaction();
-        }
-        if (++numRecordsLoaded >= MAX_RECORDS_PER_FILE) {
-          break;
-        }
+      batch.next();
+      if (++numRecordsLoaded >= MAX_RECORDS_PER_FILE) {
+        break;
       }
+    }
+    return numRecordsLoaded;
+  }
 
-      System.out.println("✅");
+  void loadEdgeFile(DeferredFile file) throws Exception {
+    // All endpoints were looked up before the edges are added, so they don't have to be checked
+    // again when they are retrieved by ID
+    TransactionBatch batch = new TransactionBatch(graph, COMMIT_EVERY_N_RECORDS, false);
+    batch.profiler = profiler;
+    // HACK: assume edge has at most one property, and it is always in column 2
+    Iterator<PropertyKey> propIt =
+        batch.tx.getEdgeLabel(file.name).mappedProperties().iterator();
+    PropertyKey propKey = propIt.hasNext() ? propIt.next() : null;
+
+    ExternalEdgeSort byTarget =
+        new ExternalEdgeSort(ExternalEdgeSort.BY_TARGET, MAX_EDGES_IN_MEMORY, sortDirectory);
+    // Both are filled at the same time while byTarget is emptied, so they share the memory
+    ExternalEdgeSort bySource =
+        new ExternalEdgeSort(ExternalEdgeSort.BY_SOURCE, MAX_EDGES_IN_MEMORY / 2, sortDirectory);
+    ExternalEdgeSort highDegree =
+        new ExternalEdgeSort(ExternalEdgeSort.BY_TARGET, MAX_EDGES_IN_MEMORY / 2, sortDirectory);
+    try {
+      // Find the storage keys of all rows, in a separate transaction which is reset regularly to
+      // keep its cache small. The rows are sorted by source, so a source is only looked up again
+      // when it changes.
+      class Resolver implements ExternalEdgeSort.EdgeHandler {
+        JanusGraphTransaction lookupTx = graph.buildTransaction().readOnly().start();
+        GraphTraversalSource lookupG = lookupTx.traversal();
+        boolean hasSource = false;
+        long lastSourceId;
+        long lastSourceKey;
+        long numRows = 0;
+
+        @Override
+        public void handle(ExternalEdgeSort.SortedEdge row) throws Exception {
+          if (!hasSource || lastSourceId != row.sourceKey) {
+            hasSource = true;
+            lastSourceId = row.sourceKey;
+            lastSourceKey = storageKey(
+                findVertex(lookupG, file.sourceLabel, Long.toString(row.sourceKey)));
+          }
+          long targetKey =
+              storageKey(findVertex(lookupG, file.targetLabel, Long.toString(row.targetKey)));
+          byTarget.add(new ExternalEdgeSort.SortedEdge(lastSourceKey, targetKey, row.value));
+
+          if (++numRows % COMMIT_EVERY_N_RECORDS == 0) {
+            lookupTx.rollback();
+            lookupTx = graph.buildTransaction().readOnly().start();
+            lookupG = lookupTx.traversal();
+          }
+        }
+      }
+      Resolver resolver = new Resolver();
+      try {
+        file.rows.forEachSorted(resolver);
+      } finally {
+        resolver.lookupTx.rollback();
+      }
+      // The rows are not needed anymore
+      file.rows.close();
+
+      // The in-degree of every target is counted while going through the edges in target order
+      byTarget.splitByInDegree(HIGH_DEGREE_IN_EDGES, bySource::add, highDegree::add);
+      ExternalEdgeSort.EdgeHandler addEdge = new ExternalEdgeSort.EdgeHandler() {
+        // Consecutive edges mostly share their source (or their target for high-degree
+        // targets), which is then only resolved once. A vertex only belongs to the transaction
+        // it was resolved in.
+        JanusGraphTransaction tx;
+        long sourceKey;
+        Vertex sourceVertex;
+        long targetKey;
+        Vertex targetVertex;
+
+        @Override
+        public void handle(ExternalEdgeSort.SortedEdge sortedEdge) throws Exception {
+          if (tx != batch.tx) {
+            tx = batch.tx;
+            sourceVertex = null;
+            targetVertex = null;
+          }
+          if (sourceVertex == null || sourceKey != sortedEdge.sourceKey) {
+            sourceKey = sortedEdge.sourceKey;
+            sourceVertex = tx.getVertex(vertexId(sourceKey));
+          }
+          if (targetVertex == null || targetKey != sortedEdge.targetKey) {
+            targetKey = sortedEdge.targetKey;
+            targetVertex = tx.getVertex(vertexId(targetKey));
+          }
+          Edge edge = sourceVertex.addEdge(file.name, targetVertex);
+          if (propKey != null) {
+            edge.property(propKey.name(), parsePropertyValue(propKey, sortedEdge.value));
+          }
+          batch.next();
+        }
+      };
+      bySource.forEachSorted(addEdge);
+      highDegree.forEachSorted(addEdge);
+      batch.commit();
+    } finally {
+      // Removes the temporary files
+      byTarget.close();
+      bySource.close();
+      highDegree.close();
     }
+  }
 
-    tx.commit();
-    tx.close();
-    tx = graph.newTransaction();
-    GraphTraversalSource g = tx.traversal();
+  Set<Object> applyUpdates(File updatesDir) throws Exception {
+    File insertsDir = new File(updatesDir, "inserts");
+    File deletesDir = new File(updatesDir, "deletes");
+    Set<Object> affectedVertexIds = new HashSet<Object>();
+    TransactionBatch batch = new TransactionBatch(graph, COMMIT_EVERY_N_RECORDS);
 
-    // Set multi-valued properties because they are in separate files
+    // Inserts, in the same order as a full load
+    for (String genericVertexName : filePathByVertex.keySet()) {
+      File file = new File(insertsDir, filePathByVertex.get(genericVertexName));
+      if (file.isFile()) {
+        System.out.print(String.format("+%s ... ", genericVertexName));
+        upsertVertices(file, genericVertexName, batch, affectedVertexIds);
+        System.out.println("✅");
+      }
+    }
     for (String propName : filePathByProperty.keySet()) {
-      System.out.print(String.format("Person.%s ... ", propName));
-
-      Iterable<CSVRecord> records = vertexCSVFormat
-          .parse(new FileReader(new File(dataDir, filePathByProperty.get(propName))));
-
-      // Iterate over all data records
-      int numRecordsLoaded = 0;
-      for (CSVRecord record : records) {
-        // Find the vertex for which to set the property
-        // Multi-valued properties only exist on the Person vertices, so we can hardcode this
-        String vertexId = record.get("Person.id");
-        Traversal<Vertex, Vertex> traversal = g.V().has("Person", "id", vertexId);
-        if (!traversal.hasNext()) {
-          throw new NoSuchElementException(
-              String.format("Could not find Person with id %s", vertexId));
-          // Silently skip if vertex can't be found
-          // continue;
+      File file = new File(insertsDir, filePathByProperty.get(propName));
+      if (file.isFile()) {
+        System.out.print(String.format("+Person.%s ... ", propName));
+        applyPropertyFile(file, propName, false, batch, affectedVertexIds);
+        System.out.println("✅");
+      }
+    }
+    for (String edgeLabelName : filePathsByEdge.keySet()) {
+      for (String filePath : filePathsByEdge.get(edgeLabelName)) {
+        File file = new File(insertsDir, filePath);
+        if (file.isFile()) {
+          System.out.print(String.format("+%s ... ", edgeLabelName));
+          applyEdgeFile(file, edgeLabelName, false, batch, affectedVertexIds);
+          System.out.println("✅");
         }
-        Vertex vertex = traversal.next();
+      }
+    }
 
-        if (propName.equals("email")) {
-          vertex.property(propName, record.get("email"));
-        } else {
-          vertex.property(propName, record.get("language"));
+    // Deletes, in reverse order so that edges are gone before their vertices
+    for (String edgeLabelName : filePathsByEdge.keySet()) {
+      for (String filePath : filePathsByEdge.get(edgeLabelName)) {
+        File file = new File(deletesDir, filePath);
+        if (file.isFile()) {
+          System.out.print(String.format("-%s ... ", edgeLabelName));
+          applyEdgeFile(file, edgeLabelName, true, batch, affectedVertexIds);
+          System.out.println("✅");
         }
+      }
+    }
+    for (String propName : filePathByProperty.keySet()) {
+      File file = new File(deletesDir, filePathByProperty.get(propName));
+      if (file.isFile()) {
+        System.out.print(String.format("-Person.%s ... ", propName));
+        applyPropertyFile(file, propName, true, batch, affectedVertexIds);
+        System.out.println("✅");
+      }
+    }
+    for (String genericVertexName : filePathByVertex.keySet()) {
+      File file = new File(deletesDir, filePathByVertex.get(genericVertexName));
+      if (file.isFile()) {
+        System.out.print(String.format("-%s ... ", genericVertexName));
+        deleteVertices(file, genericVertexName, batch, affectedVertexIds);
+        System.out.println("✅");
+      }
+    }
 
-        if (numRecordsLoaded % COMMIT_EVERY_N_RECORDS == 0) {
-          g.close();
-          tx.commit();
-          tx.close();
-          tx = graph.newTransaction();
-          g = tx.traversal();
-        }
-        if (++numRecordsLoaded >= MAX_RECORDS_PER_FILE) {
-          break;
+    batch.commit();
+    return affectedVertexIds;
+  }
+
+  void upsertVertices(File file, String genericVertexName, TransactionBatch batch,
+      Set<Object> affectedVertexIds) throws Exception {
+    for (CSVRecord record : vertexCSVFormat.parse(new FileReader(file))) {
+      VertexLabel vertexLabel = getVertexLabel(batch.tx, genericVertexName, record);
+
+      // Update the vertex if it already exists, otherwise create it
+      Iterator<Vertex> existing =
+          batch.g.V().hasLabel(vertexLabel.name()).has("id", Long.parseLong(record.get("id")));
+      Vertex vertex =
+          existing.hasNext() ? existing.next() : batch.tx.addVertex(vertexLabel.name());
+
+      for (PropertyKey propKey : vertexLabel.mappedProperties()) {
+        // Multi-valued properties are in separate files
+        if (!(propKey.name().equals("speaks") || propKey.name().equals("email"))) {
+          String rawValue = record.get(propKey.name());
+          vertex.property(propKey.name(), parsePropertyValue(propKey, rawValue));
         }
       }
 
-      System.out.println("✅");
+      affectedVertexIds.add(vertex.id());
+      batch.next();
     }
+  }
 
-    tx.commit();
-    tx.close();
-    tx = graph.newTransaction();
-    g = tx.traversal();
+  void deleteVertices(File file, String genericVertexName, TransactionBatch batch,
+      Set<Object> affectedVertexIds) throws Exception {
+    for (CSVRecord record : vertexCSVFormat.parse(new FileReader(file))) {
+      Vertex vertex = findVertexOrSkip(batch.g, genericVertexName, record.get("id"), file);
+      if (vertex == null) {
+        continue;
+      }
 
-    // Create edges
-    for (String edgeLabelName : filePathsByEdge.keySet()) {
-      System.out.print(String.format("%s ... ", edgeLabelName));
-
-      String[] files = filePathsByEdge.get(edgeLabelName);
-      EdgeLabel edgeLabel = tx.getEdgeLabel(edgeLabelName);
-
-      for (String file : files) {
-        Iterable<CSVRecord> records = edgeCSVFormat.parse(new FileReader(new File(dataDir, file)));
-
-        // Read the header record to get the source and target label
-        Iterator<CSVRecord> recordIt = records.iterator();
-        Iterator<String> headerRecordIt = recordIt.next().iterator();
-        String sourceLabel = headerRecordIt.next().split("\\.")[0];
-        String targetLabel = headerRecordIt.next().split("\\.")[0];
-
-        // Iterate over all data records
-        int numRecordsLoaded = 0;
-        while (recordIt.hasNext()) {
-          CSVRecord record = recordIt.next();
-
-          String sourceId = record.get(0);
-          String targetId = record.get(1);
-
-          Vertex source, target;
-          try {
-            if (sourceLabel.equals("Organisation")) {
-              source = g.V().hasLabel(P.within("Company", "University")).has("id", sourceId).next();
-            } else if (sourceLabel.equals("Place")) {
-              source = g.V().hasLabel(P.within("City", "Country", "Continent")).has("id", sourceId)
-                  .next();
-            } else {
-              source = g.V().hasLabel(sourceLabel).has("id", sourceId).next();
-            }
-          } catch (NoSuchElementException e) {
-            throw new NoSuchElementException(
-                String.format("Could not find %s with id %s", sourceLabel, sourceId));
-            // Silently skip edges if source is missing
-            // continue;
-          }
-          try {
-            if (targetLabel.equals("Organisation")) {
-              target = g.V().hasLabel(P.within("Company", "University")).has("id", targetId).next();
-            } else if (targetLabel.equals("Place")) {
-              target = g.V().hasLabel(P.within("City", "Country", "Continent")).has("id", targetId)
-                  .next();
-            } else {
-              target = g.V().hasLabel(targetLabel).has("id", targetId).next();
-            }
-          } catch (NoSuchElementException e) {
-            throw new NoSuchElementException(
-                String.format("Could not find %s with id %s", targetLabel, targetId));
-            // Silently skip edges if target is missing
-            // continue;
-          }
+      // Neighbors may lose a mandatory edge
+      Iterator<Vertex> neighbors = vertex.vertices(Direction.BOTH);
+      while (neighbors.hasNext()) {
+        affectedVertexIds.add(neighbors.next().id());
+      }
+      affectedVertexIds.remove(vertex.id());
+      vertex.remove();
 
-          Edge edge = source.addEdge(edgeLabelName, target);
+      batch.next();
+    }
+  }
 
-          // HACK: assume edge has at most one property, and it is always in column 2
-          Iterator<PropertyKey> propIt = edgeLabel.mappedProperties().iterator();
-          if (propIt.hasNext()) {
-            PropertyKey propKey = propIt.next();
-            String rawValue = record.get(2);
-            edge.property(propKey.name(), parsePropertyValue(propKey, rawValue));
-          }
+  void applyPropertyFile(File file, String propName, boolean isDelete, TransactionBatch batch,
+      Set<Object> affectedVertexIds) throws Exception {
+    String valueColumn = propName.equals("email") ? "email" : "language";
+    PropertyKey propKey = batch.tx.getPropertyKey(propName);
 
-          if (numRecordsLoaded % COMMIT_EVERY_N_RECORDS == 0) {
-            g.close();
-            tx.commit();
-            tx.close();
-            tx = graph.newTransaction();
-            g = tx.traversal();
-          }
-          if (++numRecordsLoaded >= MAX_RECORDS_PER_FILE) {
-            break;
+    for (CSVRecord record : vertexCSVFormat.parse(new FileReader(file))) {
+      // Multi-valued properties only exist on the Person vertices, so we can hardcode this
+      Vertex vertex = findVertexOrSkip(batch.g, "Person", record.get("Person.id"), file);
+      if (vertex == null) {
+        continue;
+      }
+      Object value = parsePropertyValue(propKey, record.get(valueColumn));
+
+      if (isDelete) {
+        Iterator<VertexProperty<Object>> props = vertex.properties(propName);
+        while (props.hasNext()) {
+          VertexProperty<Object> prop = props.next();
+          if (prop.value().equals(value)) {
+            prop.remove();
           }
         }
+      } else {
+        vertex.property(propName, value);
       }
 
-      System.out.println("✅");
+      affectedVertexIds.add(vertex.id());
+      batch.next();
     }
+  }
+
+  void applyEdgeFile(File file, String edgeLabelName, boolean isDelete, TransactionBatch batch,
+      Set<Object> affectedVertexIds) throws Exception {
+    EdgeLabel edgeLabel = batch.tx.getEdgeLabel(edgeLabelName);
+
+    // Read the header record to get the source and target label. The delete streams of the SNB
+    // generator start with a deletionDate column, which is skipped.
+    Iterator<CSVRecord> recordIt = edgeCSVFormat.parse(new FileReader(file)).iterator();
+    CSVRecord headerRecord = recordIt.next();
+    int sourceColumn = headerRecord.get(0).equals("deletionDate") ? 1 : 0;
+    String sourceLabel = headerRecord.get(sourceColumn).split("\\.")[0];
+    String targetLabel = headerRecord.get(sourceColumn + 1).split("\\.")[0];
+
+    while (recordIt.hasNext()) {
+      CSVRecord record = recordIt.next();
+      Vertex source = findVertexOrSkip(batch.g, sourceLabel, record.get(sourceColumn), file);
+      Vertex target = findVertexOrSkip(batch.g, targetLabel, record.get(sourceColumn + 1), file);
+      if (source == null || target == null) {
+        continue;
+      }
 
-    tx.commit();
-    tx.close();
+      Edge edge = findEdge(source, edgeLabelName, target);
+      if (isDelete) {
+        // There is at most one edge, because inserting an existing edge updates it
+        if (edge != null) {
+          edge.remove();
+        }
+      } else {
+        // Update the edge if it already exists, otherwise create it
+        if (edge == null) {
+          edge = source.addEdge(edgeLabelName, target);
+        }
+
+        // HACK: assume edge has at most one property, and it is in the column after the target
+        Iterator<PropertyKey> propIt = edgeLabel.mappedProperties().iterator();
+        if (propIt.hasNext()) {
+          PropertyKey propKey = propIt.next();
+          edge.property(propKey.name(),
+              parsePropertyValue(propKey, record.get(sourceColumn + 2)));
+        }
+      }
+
+      affectedVertexIds.add(source.id());
+      affectedVertexIds.add(target.id());
+      batch.next();
+    }
   }
 }
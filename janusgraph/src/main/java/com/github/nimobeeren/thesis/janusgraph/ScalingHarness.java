@@ -0,0 +1,226 @@
+package com.github.nimobeeren.thesis.janusgraph;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVRecord;
+import org.apache.tinkerpop.gremlin.process.traversal.dsl.graph.GraphTraversalSource;
+import org.janusgraph.core.JanusGraph;
+import org.janusgraph.core.JanusGraphFactory;
+
+// Loads SNB at several scale factors, introduces violations and measures validation times, to check
+// that execution times scale linearly and to catch performance regressions
+public class ScalingHarness {
+  // Same names as the violations column in analysis/results.csv
+  static final String[] VIOLATIONS = {"none", "single", "many"};
+  static final String[] VARIANTS = {"full", "binary"};
+
+  static class Measurement {
+    String scale;
+    long numElements;
+    String variant;
+    String violations;
+    long millis;
+  }
+
+  JanusGraphFactory.Builder graphConfig;
+  int numRuns;
+  List<Measurement> measurements = new ArrayList<Measurement>();
+
+  ScalingHarness(JanusGraphFactory.Builder graphConfig, int numRuns) {
+    this.graphConfig = graphConfig;
+    this.numRuns = numRuns;
+  }
+
+  void run(Map<String, File> dataByScale) throws Exception {
+    // Run the smallest scale factors first
+    Map<Double, String> scales = new TreeMap<Double, String>();
+    for (String scale : dataByScale.keySet()) {
+      scales.put(Double.parseDouble(scale), scale);
+    }
+
+    for (String scale : scales.values()) {
+      System.out.println(String.format("Loading SF%s...", scale));
+      JanusGraph graph = graphConfig.open();
+      JanusGraphFactory.drop(graph);
+      graph = graphConfig.open();
+      SNBModel model = new SNBModel(graph);
+      model.load(dataByScale.get(scale));
+
+      GraphTraversalSource g = graph.traversal();
+      long numElements = g.V().count().next() + g.E().count().next();
+      graph.tx().rollback();
+
+      // Violations are introduced cumulatively, so the graph only has to be loaded once
+      for (String violations : VIOLATIONS) {
+        mangle(graph, violations);
+        for (String variant : VARIANTS) {
+          for (int run = 0; run < numRuns; run++) {
+            Measurement measurement = new Measurement();
+            measurement.scale = scale;
+            measurement.numElements = numElements;
+            measurement.variant = variant;
+            measurement.violations = violations;
+
+            long startTime = System.currentTimeMillis();
+            if (variant.equals("binary")) {
+              model.validateBoolean();
+            } else {
+              model.validate();
+            }
+            measurement.millis = System.currentTimeMillis() - startTime;
+            // Don't let the transaction cache carry over to the next run
+            graph.tx().rollback();
+
+            System.out.println(String.format("SF%s %s %s: %d ms", scale, variant, violations,
+                measurement.millis));
+            measurements.add(measurement);
+          }
+        }
+      }
+
+      graph.close();
+    }
+  }
+
+  // Same as scripts/mangle.groovy
+  void mangle(JanusGraph graph, String violations) {
+    GraphTraversalSource g = graph.traversal();
+    if (violations.equals("single")) {
+      g.V().sample(1).property("id", null).iterate();
+    } else if (violations.equals("many")) {
+      long numV = g.V().count().next();
+      g.V().limit(numV / 2).property("id", null).iterate();
+    }
+    graph.tx().commit();
+  }
+
+  // Rows in the same format as analysis/results.csv
+  void writeResults(File file) throws IOException {
+    boolean isNew = !file.exists();
+    try (PrintWriter out = new PrintWriter(new FileWriter(file, true))) {
+      if (isNew) {
+        out.println("database,dataset,scale,variant,violations,time");
+      }
+      for (Measurement m : measurements) {
+        out.println(String.format("janusgraph,snb,%s,%s,%s,%d", m.scale, m.variant, m.violations,
+            m.millis));
+      }
+    }
+  }
+
+  // Fits time = intercept + slope * elements for every variant and violations with least squares
+  void printScalingCurves() {
+    System.out.println(String.format("%-8s %-10s %18s %14s %8s", "Variant", "Violations",
+        "ms per M elements", "Intercept (ms)", "R^2"));
+    for (String variant : VARIANTS) {
+      for (String violations : VIOLATIONS) {
+        List<Measurement> group = new ArrayList<Measurement>();
+        for (Measurement m : measurements) {
+          if (m.variant.equals(variant) && m.violations.equals(violations)) {
+            group.add(m);
+          }
+        }
+        double[] fit = fitLine(group);
+        if (fit == null) {
+          System.out.println(String.format("%-8s %-10s %18s", variant, violations,
+              "needs 2+ scales"));
+        } else {
+          System.out.println(String.format("%-8s %-10s %18.1f %14.1f %8.3f", variant, violations,
+              fit[0] * 1e6, fit[1], fit[2]));
+        }
+      }
+    }
+  }
+
+  // Returns {slope, intercept, r squared}, or null if there are less than two different sizes
+  static double[] fitLine(List<Measurement> group) {
+    int n = group.size();
+    double sumX = 0, sumY = 0;
+    for (Measurement m : group) {
+      sumX += m.numElements;
+      sumY += m.millis;
+    }
+    double meanX = sumX / n, meanY = sumY / n;
+    double sxx = 0, sxy = 0, syy = 0;
+    for (Measurement m : group) {
+      sxx += (m.numElements - meanX) * (m.numElements - meanX);
+      sxy += (m.numElements - meanX) * (m.millis - meanY);
+      syy += (m.millis - meanY) * (m.millis - meanY);
+    }
+    if (n < 2 || sxx == 0) {
+      return null;
+    }
+    double slope = sxy / sxx;
+    double rSquared = syy == 0 ? 1 : (sxy * sxy) / (sxx * syy);
+    return new double[] {slope, meanY - slope * meanX, rSquared};
+  }
+
+  // Elements validated per second, averaged over all runs, by scale/variant/violations
+  Map<String, Double> throughputs() {
+    Map<String, long[]> totals = new LinkedHashMap<String, long[]>();
+    for (Measurement m : measurements) {
+      String key = String.join(",", m.scale, m.variant, m.violations);
+      long[] total = totals.get(key);
+      if (total == null) {
+        total = new long[2];
+        totals.put(key, total);
+      }
+      total[0] += m.numElements;
+      total[1] += Math.max(m.millis, 1);
+    }
+    Map<String, Double> throughputs = new LinkedHashMap<String, Double>();
+    for (Map.Entry<String, long[]> entry : totals.entrySet()) {
+      throughputs.put(entry.getKey(), entry.getValue()[0] * 1000.0 / entry.getValue()[1]);
+    }
+    return throughputs;
+  }
+
+  void writeBaseline(File file) throws IOException {
+    try (PrintWriter out = new PrintWriter(new FileWriter(file))) {
+      out.println("scale,variant,violations,throughput");
+      for (Map.Entry<String, Double> entry : throughputs().entrySet()) {
+        // Always use a decimal point, because the file is CSV
+        out.println(String.format(Locale.ROOT, "%s,%.1f", entry.getKey(), entry.getValue()));
+      }
+    }
+  }
+
+  // Returns false if the throughput of any measurement in the baseline dropped by more than the
+  // threshold (a fraction)
+  boolean checkBaseline(File file, double threshold) throws IOException {
+    Map<String, Double> baseline = new HashMap<String, Double>();
+    CSVFormat format = CSVFormat.Builder.create().setHeader().setSkipHeaderRecord(true).build();
+    try (FileReader reader = new FileReader(file)) {
+      for (CSVRecord record : format.parse(reader)) {
+        String key = String.join(",", record.get("scale"), record.get("variant"),
+            record.get("violations"));
+        baseline.put(key, Double.parseDouble(record.get("throughput")));
+      }
+    }
+
+    boolean passed = true;
+    for (Map.Entry<String, Double> entry : throughputs().entrySet()) {
+      Double expected = baseline.get(entry.getKey());
+      if (expected == null) {
+        continue;
+      }
+      double change = entry.getValue() / expected - 1;
+      boolean regressed = change < -threshold;
+      System.out.println(String.format("%-24s %12.1f elements/s (%+.1f%%) %s", entry.getKey(),
+          entry.getValue(), change * 100, regressed ? "❌" : "✅"));
+      passed = passed && !regressed;
+    }
+    return passed;
+  }
+}
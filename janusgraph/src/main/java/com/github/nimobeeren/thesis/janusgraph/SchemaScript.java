@@ -0,0 +1,91 @@
+package com.github.nimobeeren.thesis.janusgraph;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import org.apache.tinkerpop.gremlin.structure.Vertex;
+import org.janusgraph.core.Connection;
+import org.janusgraph.core.EdgeLabel;
+import org.janusgraph.core.JanusGraph;
+import org.janusgraph.core.JanusGraphFactory;
+import org.janusgraph.core.PropertyKey;
+import org.janusgraph.core.VertexLabel;
+import org.janusgraph.core.schema.JanusGraphIndex;
+import org.janusgraph.core.schema.JanusGraphManagement;
+
+// Turns the schema of a data model into a Groovy script that creates the same schema on a remote
+// graph. The schema is first created in an in-memory graph by DataModel.loadSchema(), so the
+// schema is only defined once.
+public class SchemaScript {
+
+  // Opens an in-memory graph with the same schema settings as JanusGraphSchema
+  static JanusGraph openSchemaGraph() {
+    return JanusGraphFactory.build().set("storage.backend", "inmemory")
+        .set("schema.default", "none").set("schema.constraints", "true").open();
+  }
+
+  static String from(JanusGraph graph) {
+    JanusGraphManagement mgmt = graph.openManagement();
+    List<String> lines = new ArrayList<String>();
+
+    lines.add("mgmt = graph.openManagement()");
+    // Leave an existing schema alone, like when loading into a graph that was not dropped
+    lines.add("if (mgmt.getVertexLabels().iterator().hasNext()) { mgmt.rollback(); return }");
+
+    for (PropertyKey propKey : mgmt.getRelationTypes(PropertyKey.class)) {
+      lines.add(String.format(
+          "mgmt.makePropertyKey('%s').dataType(%s).cardinality(org.janusgraph.core.Cardinality.%s).make()",
+          propKey.name(), propKey.dataType().getName(), propKey.cardinality().name()));
+    }
+    for (VertexLabel vertexLabel : mgmt.getVertexLabels()) {
+      lines.add(String.format("mgmt.makeVertexLabel('%s').make()", vertexLabel.name()));
+    }
+    for (EdgeLabel edgeLabel : mgmt.getRelationTypes(EdgeLabel.class)) {
+      lines.add(String.format(
+          "mgmt.makeEdgeLabel('%s').multiplicity(org.janusgraph.core.Multiplicity.%s).make()",
+          edgeLabel.name(), edgeLabel.multiplicity().name()));
+    }
+
+    // Properties and connections
+    Set<String> connections = new LinkedHashSet<String>();
+    for (VertexLabel vertexLabel : mgmt.getVertexLabels()) {
+      for (PropertyKey propKey : vertexLabel.mappedProperties()) {
+        lines.add(String.format("mgmt.addProperties(mgmt.getVertexLabel('%s'), mgmt.getPropertyKey('%s'))",
+            vertexLabel.name(), propKey.name()));
+      }
+      for (Connection connection : vertexLabel.mappedConnections()) {
+        connections.add(String.format(
+            "mgmt.addConnection(mgmt.getEdgeLabel('%s'), mgmt.getVertexLabel('%s'), mgmt.getVertexLabel('%s'))",
+            connection.getEdgeLabel(), connection.getOutgoingVertexLabel().name(),
+            connection.getIncomingVertexLabel().name()));
+      }
+    }
+    lines.addAll(connections);
+    for (EdgeLabel edgeLabel : mgmt.getRelationTypes(EdgeLabel.class)) {
+      for (PropertyKey propKey : edgeLabel.mappedProperties()) {
+        lines.add(String.format("mgmt.addProperties(mgmt.getEdgeLabel('%s'), mgmt.getPropertyKey('%s'))",
+            edgeLabel.name(), propKey.name()));
+      }
+    }
+
+    // Composite indexes
+    for (JanusGraphIndex index : mgmt.getGraphIndexes(Vertex.class)) {
+      StringBuilder line = new StringBuilder(String.format(
+          "mgmt.buildIndex('%s', org.apache.tinkerpop.gremlin.structure.Vertex)", index.name()));
+      for (PropertyKey propKey : index.getFieldKeys()) {
+        line.append(String.format(".addKey(mgmt.getPropertyKey('%s'))", propKey.name()));
+      }
+      if (index.isUnique()) {
+        line.append(".unique()");
+      }
+      line.append(index.isCompositeIndex() ? ".buildCompositeIndex()"
+          : String.format(".buildMixedIndex('%s')", index.getBackingIndex()));
+      lines.add(line.toString());
+    }
+
+    lines.add("mgmt.commit()");
+    mgmt.rollback();
+    return String.join("\n", lines);
+  }
+}
@@ -0,0 +1,64 @@
+package com.github.nimobeeren.thesis.janusgraph;
+
+import org.apache.tinkerpop.gremlin.process.traversal.dsl.graph.GraphTraversalSource;
+import org.janusgraph.core.JanusGraph;
+import org.janusgraph.core.JanusGraphTransaction;
+
+// Transaction that is committed and replaced by a fresh one every n operations, to keep
+// transactions small while applying many changes
+public class TransactionBatch {
+  JanusGraph graph;
+  long batchSize;
+  // Can be disabled when all vertices that are retrieved by ID are known to exist, so getVertex()
+  // doesn't read from the storage backend
+  boolean checkExternalVertexExistence;
+  JanusGraphTransaction tx;
+  GraphTraversalSource g;
+  long numOperations = 0;
+  long numUncommittedOperations = 0;
+  // Optional, receives the latency of every commit
+  LoadProfiler profiler;
+
+  TransactionBatch(JanusGraph graph, long batchSize) {
+    this(graph, batchSize, true);
+  }
+
+  TransactionBatch(JanusGraph graph, long batchSize, boolean checkExternalVertexExistence) {
+    this.graph = graph;
+    this.batchSize = batchSize;
+    this.checkExternalVertexExistence = checkExternalVertexExistence;
+    open();
+  }
+
+  void open() {
+    tx = graph.buildTransaction().checkExternalVertexExistence(checkExternalVertexExistence)
+        .start();
+    g = tx.traversal();
+  }
+
+  // Should be called after every operation
+  void next() throws Exception {
+    numUncommittedOperations++;
+    if (++numOperations % batchSize == 0) {
+      commit();
+      open();
+    }
+  }
+
+  void commit() throws Exception {
+    LoadProfiler.CommitEvent event = new LoadProfiler.CommitEvent();
+    event.begin();
+    long startTime = System.nanoTime();
+    g.close();
+    tx.commit();
+    tx.close();
+    long nanos = System.nanoTime() - startTime;
+    event.end();
+    event.operations = numUncommittedOperations;
+    event.commit();
+    numUncommittedOperations = 0;
+    if (profiler != null) {
+      profiler.recordCommit(nanos);
+    }
+  }
+}
@@ -0,0 +1,126 @@
+package com.github.nimobeeren.thesis.janusgraph;
+
+import com.codahale.metrics.Counter;
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.EnvironmentStats;
+import com.sleepycat.je.StatsConfig;
+import java.lang.reflect.Field;
+import java.util.Map;
+import org.apache.tinkerpop.gremlin.process.traversal.dsl.graph.GraphTraversalSource;
+import org.janusgraph.core.JanusGraph;
+import org.janusgraph.core.JanusGraphFactory;
+import org.janusgraph.diskstorage.berkeleyje.BerkeleyJEStoreManager;
+import org.janusgraph.diskstorage.keycolumnvalue.KeyColumnValueStoreManager;
+import org.janusgraph.graphdb.database.StandardJanusGraph;
+import org.janusgraph.util.stats.MetricManager;
+
+// Cache tier for validation reads: the JanusGraph database-level cache on top of the BerkeleyJE
+// cache, both sized as a fraction of the heap
+public class ValidationCache {
+  // Part of the heap that both caches may use together, the rest is left for the traversals
+  static final double MAX_CACHE_FRACTION = 0.75;
+  // Part of the heap that is always left for the BerkeleyJE cache. JE keeps the internal nodes of
+  // its B-tree in there, and with less room even the lookup of a cached key has to go to disk.
+  static final double MIN_JE_CACHE_FRACTION = 0.1;
+
+  long dbCacheBytes;
+  long jeCacheBytes;
+  // BerkeleyJE environment of the graph, for its cache statistics, or null if not available
+  Environment environment;
+  // Counter values when the measurement started
+  long startRetrievals = 0;
+  long startMisses = 0;
+  long startJeMisses = 0;
+  long startJeNotResident = 0;
+
+  // dbCacheFraction is the part of the heap for the database-level cache, JE gets the rest of
+  // MAX_CACHE_FRACTION
+  ValidationCache(JanusGraphFactory.Builder graphConfig, double dbCacheFraction) {
+    if (dbCacheFraction <= 0 || dbCacheFraction >= MAX_CACHE_FRACTION - MIN_JE_CACHE_FRACTION) {
+      throw new IllegalArgumentException(String.format("Cache size must be between 0 and %.2f of "
+          + "the heap", MAX_CACHE_FRACTION - MIN_JE_CACHE_FRACTION));
+    }
+    int jeCachePercentage = (int) Math.round((MAX_CACHE_FRACTION - dbCacheFraction) * 100);
+    long maxHeap = Runtime.getRuntime().maxMemory();
+    this.dbCacheBytes = (long) (maxHeap * dbCacheFraction);
+    this.jeCacheBytes = maxHeap * jeCachePercentage / 100;
+
+    graphConfig.set("cache.db-cache", "true");
+    graphConfig.set("cache.db-cache-size", dbCacheFraction);
+    // Validation doesn't change the graph, so cached entries never become stale
+    graphConfig.set("cache.db-cache-time", 0);
+    graphConfig.set("storage.berkeleyje.cache-percentage", jeCachePercentage);
+    // Needed for the cache counters
+    graphConfig.set("metrics.enabled", "true");
+  }
+
+  // Must be called once the graph is open
+  void setGraph(JanusGraph graph) {
+    KeyColumnValueStoreManager storeManager =
+        ((StandardJanusGraph) graph).getBackend().getStoreManager();
+    if (!(storeManager instanceof BerkeleyJEStoreManager)) {
+      return;
+    }
+    try {
+      // JanusGraph doesn't expose the environment
+      Field field = BerkeleyJEStoreManager.class.getDeclaredField("environment");
+      field.setAccessible(true);
+      environment = (Environment) field.get(storeManager);
+    } catch (ReflectiveOperationException e) {
+      System.out.println(String.format("Can't read BerkeleyJE cache statistics: %s", e));
+    }
+  }
+
+  // Reads every vertex with its properties and edges once, so they are in the caches before the
+  // first validation. The database-level cache only keeps the slices that are queried here, while
+  // the BerkeleyJE cache keeps all records that were read. Returns the number of elements read.
+  static long prewarm(JanusGraph graph) {
+    GraphTraversalSource g = graph.traversal();
+    long numElements = g.V().count().next();
+    g.V().properties().iterate();
+    numElements += g.E().count().next();
+    // The caches are shared, the transaction isn't needed anymore
+    graph.tx().rollback();
+    return numElements;
+  }
+
+  // Sums the counters of all database-level caches (one per store), which are named like
+  // org.janusgraph.sys.edgestore.cache.retrievals
+  static long sumCounters(String action) {
+    long sum = 0;
+    for (Map.Entry<String, Counter> entry : MetricManager.INSTANCE.getRegistry().getCounters()
+        .entrySet()) {
+      if (entry.getKey().endsWith(".cache." + action)) {
+        sum += entry.getValue().getCount();
+      }
+    }
+    return sum;
+  }
+
+  void startMeasurement() {
+    startRetrievals = sumCounters("retrievals");
+    startMisses = sumCounters("misses");
+    if (environment != null) {
+      EnvironmentStats stats = environment.getStats(new StatsConfig());
+      startJeMisses = stats.getNCacheMiss();
+      startJeNotResident = stats.getNNotResident();
+    }
+  }
+
+  void printSummary() {
+    long retrievals = sumCounters("retrievals") - startRetrievals;
+    long misses = sumCounters("misses") - startMisses;
+    long hits = retrievals - misses;
+    System.out.println(String.format("Cache: %.1f MB database-level, %.1f MB BerkeleyJE",
+        dbCacheBytes / 1e6, jeCacheBytes / 1e6));
+    System.out.println(String.format("Cache: %d hits, %d misses (%.1f%% hit rate)", hits, misses,
+        retrievals == 0 ? 0.0 : hits * 100.0 / retrievals));
+    if (environment != null) {
+      // Misses are records that had to be read from disk, not resident are all records that were
+      // not in the cache when they were needed (including internal nodes)
+      EnvironmentStats stats = environment.getStats(new StatsConfig());
+      System.out.println(String.format("BerkeleyJE cache: %d misses, %d not resident",
+          stats.getNCacheMiss() - startJeMisses, stats.getNNotResident() - startJeNotResident));
+    }
+  }
+}
@@ -0,0 +1,195 @@
+package com.github.nimobeeren.thesis.janusgraph;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+import org.janusgraph.core.PropertyKey;
+
+// Turns raw values from the data files into values of the data type of their property key, so
+// they are parsed once by the loader instead of being converted by JanusGraph on every write and
+// lookup.
+// Low-cardinality string keys (like gender) are dictionary-encoded: the graph stores a Short code
+// per value instead of the string, and the code tables are persisted in a file next to the graph
+// so later loads and updates keep using the same codes. Several keys can share a dictionary when
+// they have the same values (like language and speaks).
+public class ValueEncoder {
+  static final DateTimeFormatter DATE_TIME_FORMAT =
+      DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+  // Data type of the dictionary-encoded keys in the schema
+  static final Class<Short> CODE_TYPE = Short.class;
+  static final CSVFormat DICTIONARY_FORMAT = CSVFormat.Builder.create()
+      .setHeader("dictionary", "code", "value").setSkipHeaderRecord(true).build();
+
+  // Name of the dictionary of every dictionary-encoded key
+  Map<String, String> dictionaryByKey = new HashMap<String, String>();
+  // Code of every value, by dictionary
+  Map<String, Map<String, Short>> codesByDictionary = new HashMap<String, Map<String, Short>>();
+  // Value of every code (the index in the list), by dictionary
+  Map<String, List<String>> valuesByDictionary = new HashMap<String, List<String>>();
+  // Dates without a time are at the start of the day in this time zone, like SimpleDateFormat
+  ZoneId zone = ZoneId.systemDefault();
+  // Only used for dates that the strict formats above reject (like 1930-5-1, or a date followed by
+  // a time), which were accepted before the strict formats were introduced
+  SimpleDateFormat lenientDateFormat = new SimpleDateFormat("yyyy-MM-dd");
+  SimpleDateFormat lenientDateTimeFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+
+  // Encodes the values of the given keys through the dictionary with the given name. The keys
+  // must have CODE_TYPE as their data type.
+  void addDictionary(String dictionary, String... keyNames) {
+    for (String keyName : keyNames) {
+      dictionaryByKey.put(keyName, dictionary);
+    }
+    codesByDictionary.putIfAbsent(dictionary, new HashMap<String, Short>());
+    valuesByDictionary.putIfAbsent(dictionary, new ArrayList<String>());
+  }
+
+  boolean isEncoded(String keyName) {
+    return dictionaryByKey.containsKey(keyName);
+  }
+
+  Object encode(PropertyKey propKey, String rawValue) {
+    if (rawValue == null) {
+      return null;
+    }
+
+    if (isEncoded(propKey.name())) {
+      return code(propKey.name(), rawValue);
+    }
+    Class<?> dataType = propKey.dataType();
+    if (dataType == Date.class) {
+      return new Date(parseEpochMillis(rawValue));
+    }
+    try {
+      if (dataType == Long.class) {
+        return Long.parseLong(rawValue);
+      }
+      if (dataType == Integer.class) {
+        return Integer.parseInt(rawValue);
+      }
+      if (dataType == Short.class) {
+        return Short.parseShort(rawValue);
+      }
+      if (dataType == Float.class) {
+        return Float.parseFloat(rawValue);
+      }
+    } catch (NumberFormatException e) {
+      // Leave unusual formats (like 1.5E7) to the conversion of JanusGraph
+      return rawValue;
+    }
+
+    return rawValue;
+  }
+
+  // Returns the code of a value of a dictionary-encoded key, and adds the value to the dictionary
+  // if it is new. Loaders may call this from several threads.
+  synchronized Short code(String keyName, String value) {
+    String dictionary = dictionaryByKey.get(keyName);
+    Map<String, Short> codes = codesByDictionary.get(dictionary);
+    Short code = codes.get(value);
+    if (code == null) {
+      List<String> values = valuesByDictionary.get(dictionary);
+      if (values.size() > Short.MAX_VALUE) {
+        throw new IllegalArgumentException(String.format(
+            "Dictionary %s is full with %d values, %s can't be encoded", dictionary,
+            values.size(), value));
+      }
+      code = (short) values.size();
+      values.add(value);
+      codes.put(value, code);
+    }
+    return code;
+  }
+
+  // Returns null for a code that is not in the dictionary
+  synchronized String decode(String keyName, Short code) {
+    List<String> values = valuesByDictionary.get(dictionaryByKey.get(keyName));
+    if (code == null || code < 0 || code >= values.size()) {
+      return null;
+    }
+    return values.get(code);
+  }
+
+  // Adds the codes of a previous load, which must be read before any value is encoded. A missing
+  // file is fine, because then nothing was encoded before.
+  synchronized void load(File file) throws IOException {
+    if (!file.isFile()) {
+      return;
+    }
+    try (FileReader reader = new FileReader(file)) {
+      for (CSVRecord record : DICTIONARY_FORMAT.parse(reader)) {
+        String dictionary = record.get("dictionary");
+        List<String> values = valuesByDictionary.get(dictionary);
+        if (values == null) {
+          // Belongs to another dataset
+          continue;
+        }
+        short code = Short.parseShort(record.get("code"));
+        if (code != values.size()) {
+          throw new IOException(String.format("Code %d of dictionary %s in %s is out of order",
+              code, dictionary, file));
+        }
+        values.add(record.get("value"));
+        codesByDictionary.get(dictionary).put(record.get("value"), code);
+      }
+    }
+  }
+
+  // Written to a temporary file first, so a failure doesn't leave a partial table behind
+  synchronized void save(File file) throws IOException {
+    File tempFile = new File(file.getPath() + ".tmp");
+    try (CSVPrinter printer = DICTIONARY_FORMAT.print(new FileWriter(tempFile))) {
+      printer.printRecord("dictionary", "code", "value");
+      for (Map.Entry<String, List<String>> entry : valuesByDictionary.entrySet()) {
+        List<String> values = entry.getValue();
+        for (int code = 0; code < values.size(); code++) {
+          printer.printRecord(entry.getKey(), code, values.get(code));
+        }
+      }
+    }
+    Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  // Dates are mostly yyyy-MM-dd or yyyy-MM-ddTHH:mm:ss.SSS+0000
+  long parseEpochMillis(String rawValue) {
+    try {
+      if (rawValue.length() == 10) {
+        return LocalDate.parse(rawValue).atStartOfDay(zone).toInstant().toEpochMilli();
+      }
+      return OffsetDateTime.parse(rawValue, DATE_TIME_FORMAT).toInstant().toEpochMilli();
+    } catch (DateTimeParseException e) {
+      return parseEpochMillisLenient(rawValue);
+    }
+  }
+
+  long parseEpochMillisLenient(String rawValue) {
+    try {
+      return lenientDateTimeFormat.parse(rawValue).getTime();
+    } catch (ParseException e) {
+      // Not a date with a time, but it may still start with a date
+    }
+    try {
+      return lenientDateFormat.parse(rawValue).getTime();
+    } catch (ParseException e) {
+      throw new IllegalArgumentException(String.format("Can't parse date %s", rawValue), e);
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package com.github.nimobeeren.thesis.janusgraph;
+
+import static org.junit.Assert.assertEquals;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.janusgraph.core.JanusGraph;
+import org.janusgraph.core.PropertyKey;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+// Runs against a Gremlin Server given by -Dremote.address=host:port, and is skipped otherwise.
+// All vertices on the server are deleted, so only use a throwaway instance.
+public class RemoteLoaderTest {
+  RemoteGraph remote;
+  JanusGraph schemaGraph;
+  SNBModel model;
+
+  @Before
+  public void connect() throws Exception {
+    String address = System.getProperty("remote.address");
+    Assume.assumeNotNull(address);
+
+    // A single request in flight, which is below the default minimum connection pool size
+    remote = new RemoteGraph(address, 1);
+    schemaGraph = SchemaScript.openSchemaGraph();
+    model = new SNBModel(schemaGraph);
+    model.loadSchema();
+    remote.submitScript(SchemaScript.from(schemaGraph));
+    remote.g.V().drop().iterate();
+  }
+
+  @After
+  public void close() throws Exception {
+    if (remote != null) {
+      remote.close();
+    }
+    if (schemaGraph != null) {
+      schemaGraph.close();
+    }
+  }
+
+  @Test
+  public void loadsBatches() throws Exception {
+    // Batches are smaller than the number of rows, so some requests hold several rows
+    RemoteLoader loader = new RemoteLoader(remote, 2, 1);
+    List<Map<String, Object>> people = new ArrayList<Map<String, Object>>();
+    for (long id = 1; id <= 3; id++) {
+      Map<String, Object> props = new LinkedHashMap<String, Object>();
+      props.put("id", id);
+      props.put("firstName", "Person " + id);
+      people.add(props);
+    }
+    loader.submitVertices("Person", people);
+    loader.awaitAll();
+
+    // Dictionary-encoded, like the rows of a full load
+    Short en = model.encoder.code("speaks", "en");
+    Short nl = model.encoder.code("speaks", "nl");
+    loader.submitProperties("speaks",
+        Arrays.asList(new Object[] {1L, en}, new Object[] {1L, nl}, new Object[] {2L, en}));
+    PropertyKey creationDateKey = schemaGraph.openManagement().getPropertyKey("creationDate");
+    Date creationDate = new Date(1262304000000L);
+    loader.submitEdges("KNOWS", "Person", "Person", creationDateKey,
+        Arrays.asList(new Object[] {1L, 2L, creationDate}, new Object[] {1L, 3L, creationDate},
+            new Object[] {2L, 3L, creationDate}));
+    loader.awaitAll();
+
+    assertEquals(3L, (long) remote.g.V().hasLabel("Person").count().next());
+    assertEquals(new HashSet<Object>(Arrays.asList(en, nl)),
+        remote.g.V().has("Person", "id", 1L).values("speaks").toSet());
+    assertEquals(new HashSet<Object>(Arrays.asList(2L, 3L)),
+        remote.g.V().has("Person", "id", 1L).out("KNOWS").values("id").toSet());
+    assertEquals(3L, (long) remote.g.E().hasLabel("KNOWS").has("creationDate", creationDate)
+        .count().next());
+  }
+}
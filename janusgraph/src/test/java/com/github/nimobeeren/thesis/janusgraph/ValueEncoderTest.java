@@ -0,0 +1,85 @@
+package com.github.nimobeeren.thesis.janusgraph;
+
+import static org.junit.Assert.assertEquals;
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import org.janusgraph.core.JanusGraph;
+import org.janusgraph.core.PropertyKey;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ValueEncoderTest {
+  JanusGraph graph;
+  RecommendationsModel model;
+  PropertyKey bornKey;
+  PropertyKey diedKey;
+
+  @Before
+  public void createSchema() {
+    graph = SchemaScript.openSchemaGraph();
+    model = new RecommendationsModel(graph);
+    model.loadSchema();
+    bornKey = graph.openManagement().getPropertyKey("born");
+    diedKey = graph.openManagement().getPropertyKey("died");
+  }
+
+  @After
+  public void close() {
+    graph.close();
+  }
+
+  // Same as the loader before dates were parsed strictly
+  static Date parseDate(String value) throws Exception {
+    return new SimpleDateFormat("yyyy-MM-dd").parse(value);
+  }
+
+  @Test
+  public void parsesDates() throws Exception {
+    assertEquals(Arrays.asList(parseDate("1930-05-12")),
+        model.parsePropertyValues(bornKey, "1930-05-12"));
+  }
+
+  @Test
+  public void parsesMalformedDatesLikeBefore() throws Exception {
+    assertEquals(Arrays.asList(parseDate("1930-05-02")),
+        model.parsePropertyValues(bornKey, "1930-5-2"));
+    assertEquals(Arrays.asList(parseDate("2004-01-09")),
+        model.parsePropertyValues(diedKey, "2004-01-09 00:00:00"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsValuesThatAreNoDate() throws Exception {
+    model.parsePropertyValues(bornKey, "unknown");
+  }
+
+  @Test
+  public void encodesLowCardinalityValuesAsCodes() throws Exception {
+    PropertyKey countriesKey = graph.openManagement().getPropertyKey("countries");
+    List<Object> codes = model.parsePropertyValues(countriesKey, "[\"USA\",\"France\",\"USA\"]");
+    assertEquals(Arrays.asList((short) 0, (short) 1, (short) 0), codes);
+    assertEquals("France", model.encoder.decode("countries", (short) 1));
+    // Every key has its own dictionary
+    PropertyKey languagesKey = graph.openManagement().getPropertyKey("languages");
+    assertEquals(Arrays.asList((short) 0), model.parsePropertyValues(languagesKey, "English"));
+  }
+
+  @Test
+  public void keepsCodesBetweenLoads() throws Exception {
+    model.encoder.code("countries", "USA");
+    model.encoder.code("countries", "France");
+    File file = File.createTempFile("dictionary", ".csv");
+    try {
+      model.encoder.save(file);
+      RecommendationsModel nextModel = new RecommendationsModel(graph);
+      nextModel.encoder.load(file);
+      assertEquals(Short.valueOf((short) 1), nextModel.encoder.code("countries", "France"));
+      assertEquals(Short.valueOf((short) 2), nextModel.encoder.code("countries", "Japan"));
+    } finally {
+      file.delete();
+    }
+  }
+}